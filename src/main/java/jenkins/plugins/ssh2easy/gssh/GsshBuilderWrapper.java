@@ -12,10 +12,16 @@ import hudson.util.CopyOnWriteList;
 import hudson.util.FormValidation;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
+import jenkins.plugins.ssh2easy.gssh.client.DefaultSshClient;
+import jenkins.plugins.ssh2easy.gssh.client.JenkinsSshClient;
+import jenkins.plugins.ssh2easy.gssh.client.ServerHealth;
 import jenkins.plugins.ssh2easy.gssh.client.SshClient;
+import jenkins.plugins.ssh2easy.gssh.client.SshConnectionPool;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -234,23 +240,35 @@ public final class GsshBuilderWrapper extends BuildWrapper {
             return pub;
         }
 
+        /**
+         * Server groups are bound from the structured form, request
+         * parameters leave out unchecked checkboxes and would mix up the
+         * values of several groups. Idle pooled connections of the old
+         * settings are closed, leased ones are not reused since the pool key
+         * covers the credentials and transport settings.
+         */
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) {
-            serverGroups.replaceBy(req.bindParametersToList(ServerGroup.class,
-                    "gssh.sg.wrapper."));
+            serverGroups.replaceBy(req.bindJSONToList(ServerGroup.class, formData.get("serverGroups")));
             servers.replaceBy(req.bindParametersToList(Server.class,
                     "gssh.s.wrapper."));
             save();
+            clearPools();
             return true;
         }
 
-        public boolean doServerGroupSubmit(StaplerRequest req, StaplerResponse rsp) {
-            serverGroups.replaceBy(req.bindParametersToList(ServerGroup.class,
-                    "gssh.sg.wrapper."));
+        public boolean doServerGroupSubmit(StaplerRequest req, StaplerResponse rsp) throws ServletException {
+            serverGroups.replaceBy(req.bindJSONToList(ServerGroup.class, req.getSubmittedForm().get("serverGroups")));
             save();
+            clearPools();
             return true;
         }
 
+        private static void clearPools() {
+            DefaultSshClient.getSessionPool().clear();
+            JenkinsSshClient.getConnectionPool().clear();
+        }
+
         public boolean doServerSubmit(StaplerRequest req, StaplerResponse rsp) {
             servers.replaceBy(req.bindParametersToList(Server.class,
                     "gssh.s.wrapper."));
@@ -290,6 +308,25 @@ public final class GsshBuilderWrapper extends BuildWrapper {
             return serverGroup.getSshClient(ip);
         }
 
+        public SshConnectionPool.Statistics[] getPoolStatistics() {
+            return new SshConnectionPool.Statistics[]{
+                DefaultSshClient.getSessionPool().getStatistics(),
+                JenkinsSshClient.getConnectionPool().getStatistics()
+            };
+        }
+
+        /**
+         * @return the latest background health check of every server
+         */
+        public List<String> getServerHealth() {
+            List<String> health = new ArrayList<String>();
+            for (Server server : getServers()) {
+                ServerHealth check = ServerHealthChecker.getHealth(server);
+                health.add(server.getServerInfo() + " --> " + (check == null ? "not checked yet" : check));
+            }
+            return health;
+        }
+
         public FormValidation doCheckUsername(@QueryParameter String value) throws IOException, ServletException {
             if (value.length() == 0) {
                 return FormValidation.error("Please set a name");
@@ -326,6 +363,14 @@ public final class GsshBuilderWrapper extends BuildWrapper {
             return FormValidation.ok();
         }
 
+        public FormValidation doCheckTimeoutSignal(@QueryParameter String value) throws IOException, ServletException {
+            String signal = ServerGroup.normalizeSignal(value);
+            if (signal.length() > 0 && !ServerGroup.isValidSignal(signal)) {
+                return FormValidation.error("Please input a signal name like TERM or KILL , only letters and digits");
+            }
+            return FormValidation.ok();
+        }
+
         public FormValidation doCheckPassword(@QueryParameter String value) throws IOException, ServletException {
             if (value.length() == 0) {
                 return FormValidation.error("Please input password");
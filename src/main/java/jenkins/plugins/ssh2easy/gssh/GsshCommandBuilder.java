@@ -24,15 +24,19 @@ public class GsshCommandBuilder extends Builder {
     private String groupName;
     private String ip;
     private String shell;
+    private int timeout;
+    private int outputTimeout;
 
     public GsshCommandBuilder() {
     }
 
     @DataBoundConstructor
-    public GsshCommandBuilder(boolean disable, String serverInfo, String shell) {
+    public GsshCommandBuilder(boolean disable, String serverInfo, String shell, int timeout, int outputTimeout) {
         this.disable = disable;
         this.serverInfo = serverInfo;
         this.shell = shell;
+        this.timeout = timeout;
+        this.outputTimeout = outputTimeout;
         this.ip = Server.parseIp(this.serverInfo);
         this.groupName = Server.parseServerGroupName(this.serverInfo);
     }
@@ -49,6 +53,7 @@ public class GsshCommandBuilder extends Builder {
         logger.println("execute on server -- " + getServerInfo());
         // This is where you 'build' the project.
         SshClient sshHandler = GsshBuilderWrapper.DESCRIPTOR.getSshClient(getGroupName(), getIp());
+        sshHandler.setCommandTimeouts(timeout, outputTimeout);
         int exitStatus = sshHandler.executeCommand(logger, shell);
         GsshBuilderWrapper.printSplit(logger);
         return exitStatus == SshClient.STATUS_SUCCESS;
@@ -83,6 +88,29 @@ public class GsshCommandBuilder extends Builder {
         this.shell = shell;
     }
 
+    /**
+     * @return seconds the commands may run, 0 for the server group's timeout
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return seconds the commands may go without output, 0 for the server
+     *         group's timeout
+     */
+    public int getOutputTimeout() {
+        return outputTimeout;
+    }
+
+    public void setOutputTimeout(int outputTimeout) {
+        this.outputTimeout = outputTimeout;
+    }
+
     public String getServerInfo() {
         return serverInfo;
     }
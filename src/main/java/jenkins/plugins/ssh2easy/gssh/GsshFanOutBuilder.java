@@ -0,0 +1,433 @@
+package jenkins.plugins.ssh2easy.gssh;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.BuildListener;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Descriptor;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import jenkins.plugins.ssh2easy.gssh.client.SshClient;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Runs the same commands on every server of a server group, or on a chosen
+ * list of servers, with a bounded number of servers at the same time.
+ *
+ * With a batch size the servers are updated in rolling batches: the next
+ * batch starts once the previous one is done, and the remaining batches are
+ * skipped as soon as more servers failed than the step tolerates.
+ */
+public class GsshFanOutBuilder extends Builder {
+
+    public static final Logger LOGGER = Logger.getLogger(GsshFanOutBuilder.class.getName());
+    public static final int DEFAULT_PARALLELISM = 10;
+
+    private boolean disable;
+    private String groupName;
+    private String serverInfos;
+    private String shell;
+    private boolean script;
+    private int parallelism;
+    private String batchSize;
+    private int maxFailures;
+    private boolean skipUnhealthy;
+
+    public GsshFanOutBuilder() {
+    }
+
+    @DataBoundConstructor
+    public GsshFanOutBuilder(boolean disable, String groupName, String serverInfos, String shell, boolean script,
+            int parallelism, String batchSize, int maxFailures, boolean skipUnhealthy) {
+        this.disable = disable;
+        this.groupName = groupName;
+        this.serverInfos = serverInfos;
+        this.shell = shell;
+        this.script = script;
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+        this.maxFailures = maxFailures;
+        this.skipUnhealthy = skipUnhealthy;
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) throws InterruptedException {
+        PrintStream logger = listener.getLogger();
+        GsshBuilderWrapper.printSplit(logger);
+        if (isDisable()) {
+            logger.println("current step is disabled , skip to execute");
+            return true;
+        }
+        List<Server> servers = getTargetServers();
+        if (servers.isEmpty()) {
+            logger.println("no target server found for group [" + groupName + "] and servers [" + serverInfos + "]");
+            return false;
+        }
+        List<List<Server>> batches;
+        try {
+            batches = splitIntoBatches(servers, batchSize);
+        } catch (IllegalArgumentException e) {
+            logger.println(e.getMessage());
+            return false;
+        }
+        logger.println("execute on " + servers.size() + " servers in " + batches.size() + " batches with "
+                + getParallelism() + " at the same time");
+        Map<Server, Integer> results = execute(logger, batches);
+        boolean success = printSummary(logger, servers, results);
+        GsshBuilderWrapper.printSplit(logger);
+        return success;
+    }
+
+    /**
+     * @return the servers of the selected group followed by the listed
+     *         servers, without duplicates
+     */
+    public List<Server> getTargetServers() {
+        Map<String, Server> targets = new LinkedHashMap<String, Server>();
+        Server[] all = GsshBuilderWrapper.DESCRIPTOR.getServers();
+        if (groupName != null && !groupName.trim().isEmpty()) {
+            for (Server server : all) {
+                if (server.getServerGroupName().trim().equals(groupName.trim())) {
+                    targets.put(server.getServerInfo(), server);
+                }
+            }
+        }
+        if (serverInfos != null) {
+            for (String line : serverInfos.split("[\\r\\n]+")) {
+                String info = line.trim();
+                if (info.isEmpty()) {
+                    continue;
+                }
+                for (Server server : all) {
+                    if (server.getServerInfo().equals(info)) {
+                        targets.put(info, server);
+                    }
+                }
+            }
+        }
+        return new ArrayList<Server>(targets.values());
+    }
+
+    /**
+     * Split the servers into rolling batches.
+     *
+     * @param batchSize servers per batch as a number, or as a percentage of
+     *        all servers like "25%", empty for a single batch
+     * @throws IllegalArgumentException if the batch size is neither
+     */
+    public static List<List<Server>> splitIntoBatches(List<Server> servers, String batchSize) {
+        int size = servers.size();
+        String value = batchSize == null ? "" : batchSize.trim();
+        if (!value.isEmpty()) {
+            try {
+                if (value.endsWith("%")) {
+                    int percent = Integer.parseInt(value.substring(0, value.length() - 1).trim());
+                    size = (int) Math.ceil(servers.size() * percent / 100.0);
+                } else {
+                    size = Integer.parseInt(value);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("batch size [" + batchSize
+                        + "] is neither a number nor a percentage like 25%", e);
+            }
+        }
+        size = Math.max(1, size);
+        List<List<Server>> batches = new ArrayList<List<Server>>();
+        for (int from = 0; from < servers.size(); from += size) {
+            batches.add(servers.subList(from, Math.min(from + size, servers.size())));
+        }
+        return batches;
+    }
+
+    /**
+     * Run batch after batch and collect the exit status of every server, the
+     * output of the servers is written to the build log line by line, every
+     * line prefixed with its server. Servers of skipped batches have no
+     * result.
+     */
+    protected Map<Server, Integer> execute(PrintStream logger, List<List<Server>> batches)
+            throws InterruptedException {
+        Map<Server, Integer> results = new LinkedHashMap<Server, Integer>();
+        final HostOutputAggregator output = new HostOutputAggregator(logger);
+        ExecutorService executor = Executors.newFixedThreadPool(getParallelism());
+        try {
+            int failed = 0;
+            for (int i = 0; i < batches.size(); i++) {
+                List<Server> batch = batches.get(i);
+                if (batches.size() > 1) {
+                    output.println("execute batch " + (i + 1) + " of " + batches.size() + " on " + batch.size()
+                            + " servers");
+                }
+                Map<Server, Future<Integer>> futures = new LinkedHashMap<Server, Future<Integer>>();
+                for (final Server server : batch) {
+                    if (ServerHealthChecker.isUnhealthy(server)) {
+                        output.println(server.getServerInfo() + " failed its last health check : "
+                                + ServerHealthChecker.getHealth(server).getError()
+                                + (isSkipUnhealthy() ? " , counted as failed without connecting" : ""));
+                        if (isSkipUnhealthy()) {
+                            results.put(server, SshClient.STATUS_FAILED);
+                            failed++;
+                            continue;
+                        }
+                    }
+                    futures.put(server, executor.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            return executeOn(output, server);
+                        }
+                    }));
+                }
+                for (Map.Entry<Server, Future<Integer>> entry : futures.entrySet()) {
+                    int status;
+                    try {
+                        status = entry.getValue().get();
+                    } catch (ExecutionException e) {
+                        PrintStream hostLogger = output.newHostStream(hostName(entry.getKey()));
+                        hostLogger.println("execute on server -- " + entry.getKey().getServerInfo() + " failed !");
+                        e.getCause().printStackTrace(hostLogger);
+                        hostLogger.close();
+                        status = SshClient.STATUS_FAILED;
+                    }
+                    results.put(entry.getKey(), status);
+                    if (status != SshClient.STATUS_SUCCESS) {
+                        failed++;
+                    }
+                }
+                if (failed > getMaxFailures() && i < batches.size() - 1) {
+                    output.println(failed + " servers failed , more than the tolerated " + getMaxFailures()
+                            + " , skip the remaining " + (batches.size() - i - 1) + " batches");
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Run the commands on one server, its output goes to its own stream of
+     * the aggregator.
+     *
+     * @return the exit status of the commands
+     */
+    protected int executeOn(HostOutputAggregator output, Server server) {
+        PrintStream hostLogger = output.newHostStream(hostName(server));
+        int status;
+        try {
+            SshClient sshClient = GsshBuilderWrapper.DESCRIPTOR.getSshClient(server.getServerGroupName(), server.getIp());
+            if (script) {
+                status = sshClient.executeShellByFTP(hostLogger, shell);
+            } else {
+                status = sshClient.executeCommand(hostLogger, shell);
+            }
+        } catch (RuntimeException e) {
+            hostLogger.println("execute on server -- " + server.getServerInfo() + " failed !");
+            e.printStackTrace(hostLogger);
+            status = SshClient.STATUS_FAILED;
+        } finally {
+            hostLogger.close();
+        }
+        return status;
+    }
+
+    /**
+     * @return the prefix of the output lines of the server
+     */
+    private static String hostName(Server server) {
+        return server.getName() == null || server.getName().trim().isEmpty() ? server.getIp() : server.getName();
+    }
+
+    private boolean printSummary(PrintStream logger, List<Server> servers, Map<Server, Integer> results) {
+        int failed = 0;
+        int skipped = 0;
+        logger.println("exit status per server :");
+        for (Server server : servers) {
+            Integer status = results.get(server);
+            if (status == null) {
+                logger.println("  " + server.getServerInfo() + " --> skipped");
+                skipped++;
+                continue;
+            }
+            logger.println("  " + server.getServerInfo() + " --> " + status);
+            if (status != SshClient.STATUS_SUCCESS) {
+                failed++;
+            }
+        }
+        logger.println((results.size() - failed) + " succeeded , " + failed + " failed , " + skipped + " skipped");
+        return skipped == 0 && failed <= getMaxFailures();
+    }
+
+    @Override
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl) super.getDescriptor();
+    }
+
+    public boolean isDisable() {
+        return disable;
+    }
+
+    public void setDisable(boolean disable) {
+        this.disable = disable;
+    }
+
+    public String getGroupName() {
+        return groupName;
+    }
+
+    public void setGroupName(String groupName) {
+        this.groupName = groupName;
+    }
+
+    public String getServerInfos() {
+        return serverInfos;
+    }
+
+    public void setServerInfos(String serverInfos) {
+        this.serverInfos = serverInfos;
+    }
+
+    public String getShell() {
+        return shell;
+    }
+
+    public void setShell(String shell) {
+        this.shell = shell;
+    }
+
+    public boolean isScript() {
+        return script;
+    }
+
+    public void setScript(boolean script) {
+        this.script = script;
+    }
+
+    public int getParallelism() {
+        return parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return true to count servers that failed their last background health
+     *         check as failed instead of connecting to them
+     */
+    public boolean isSkipUnhealthy() {
+        return skipUnhealthy;
+    }
+
+    public void setSkipUnhealthy(boolean skipUnhealthy) {
+        this.skipUnhealthy = skipUnhealthy;
+    }
+
+    public String getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(String batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return how many servers may fail before the remaining batches are
+     *         skipped and the step fails
+     */
+    public int getMaxFailures() {
+        return Math.max(0, maxFailures);
+    }
+
+    public void setMaxFailures(int maxFailures) {
+        this.maxFailures = maxFailures;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.SSHFANOUT_DisplayName();
+        }
+
+        @Override
+        public Builder newInstance(StaplerRequest req, JSONObject formData)
+                throws Descriptor.FormException {
+            return req.bindJSON(this.clazz, formData);
+        }
+
+        public ListBoxModel doFillGroupNameItems() {
+            ListBoxModel m = new ListBoxModel();
+            m.add("");
+            for (ServerGroup group : GsshBuilderWrapper.DESCRIPTOR.getServerGroups()) {
+                m.add(group.getGroupName());
+            }
+            return m;
+        }
+
+        public FormValidation doCheckServerInfos(@QueryParameter String value) {
+            if (value == null) {
+                return FormValidation.ok();
+            }
+            for (String line : value.split("[\\r\\n]+")) {
+                String info = line.trim();
+                if (!info.isEmpty() && !info.contains(Server.INFO_SPLIT)) {
+                    return FormValidation.error("'" + info + "' is not a server , use group" + Server.INFO_SPLIT
+                            + "name" + Server.INFO_SPLIT + "ip");
+                }
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckBatchSize(@QueryParameter String value) {
+            String size = value == null ? "" : value.trim();
+            if (size.endsWith("%")) {
+                size = size.substring(0, size.length() - 1).trim();
+            }
+            try {
+                if (size.length() > 0 && Integer.parseInt(size) < 1) {
+                    return FormValidation.error("Please input a number or percentage greater than 0");
+                }
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Please input the batch size as integer or percentage like 25%");
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckParallelism(@QueryParameter String value) {
+            try {
+                if (value.length() > 0 && Integer.parseInt(value) < 1) {
+                    return FormValidation.error("Please input a number greater than 0");
+                }
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Please input the parallelism as integer");
+            }
+            return FormValidation.ok();
+        }
+    }
+}
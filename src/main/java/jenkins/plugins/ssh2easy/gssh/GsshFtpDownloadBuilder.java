@@ -20,6 +20,7 @@ import org.kohsuke.stapler.StaplerRequest;
 public class GsshFtpDownloadBuilder extends Builder {
 
     public static final Logger LOGGER = Logger.getLogger(GsshShellBuilder.class.getName());
+    public static final int DEFAULT_PARALLELISM = 4;
     private boolean disable;
     private String serverInfo;
     private String groupName;
@@ -27,12 +28,16 @@ public class GsshFtpDownloadBuilder extends Builder {
     private String remoteFile;
     private String localFolder;
     private String fileName;
+    private int parts;
+    private int parallelism;
+    private boolean tarStream;
 
     public GsshFtpDownloadBuilder() {
     }
 
     @DataBoundConstructor
-    public GsshFtpDownloadBuilder(boolean disable, String serverInfo, String remoteFile, String localFolder, String fileName) {              
+    public GsshFtpDownloadBuilder(boolean disable, String serverInfo, String remoteFile, String localFolder, String fileName,
+            int parts, int parallelism, boolean tarStream) {              
         this.disable = disable;
         this.serverInfo = serverInfo;
         this.ip = Server.parseIp(this.serverInfo);
@@ -40,6 +45,9 @@ public class GsshFtpDownloadBuilder extends Builder {
         this.remoteFile = remoteFile;
         this.fileName = fileName;
         this.localFolder = localFolder;
+        this.parts = parts;
+        this.parallelism = parallelism;
+        this.tarStream = tarStream;
     }
 
     @SuppressWarnings("rawtypes")
@@ -73,7 +81,15 @@ public class GsshFtpDownloadBuilder extends Builder {
             }
             logger.println("localFolder: " + path);
             
-            exitStatus = sshClient.downloadFile(logger, remoteFile, path, fileName);
+            if (isPattern(remoteFile) && isTarStream()) {
+                exitStatus = sshClient.downloadFilesAsTar(logger, remoteFile, path);
+            } else if (isPattern(remoteFile)) {
+                exitStatus = sshClient.downloadFiles(logger, remoteFile, path, getParallelism());
+            } else if (getParts() > 1) {
+                exitStatus = sshClient.downloadFileInParts(logger, remoteFile, path, fileName, getParts());
+            } else {
+                exitStatus = sshClient.downloadFile(logger, remoteFile, path, fileName);
+            }
             GsshBuilderWrapper.printSplit(logger);
         } catch (Exception e) {
             return false;
@@ -81,6 +97,14 @@ public class GsshFtpDownloadBuilder extends Builder {
         return exitStatus == SshClient.STATUS_SUCCESS;
     }
 
+    /**
+     * @return true if the remote file is a folder ending with / or a pattern
+     *         with wildcards, which download all matching files
+     */
+    private static boolean isPattern(String remoteFile) {
+        return remoteFile.endsWith("/") || remoteFile.indexOf('*') >= 0 || remoteFile.indexOf('?') >= 0;
+    }
+
     public String getServerInfo() {
         return serverInfo;
     }
@@ -137,6 +161,42 @@ public class GsshFtpDownloadBuilder extends Builder {
         this.fileName = fileName;
     }
 
+    /**
+     * @return how many byte ranges of the remote file are downloaded at the
+     *         same time, 1 for a single stream
+     */
+    public int getParts() {
+        return Math.max(1, parts);
+    }
+
+    public void setParts(int parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * @return how many files of a remote folder or pattern are downloaded at
+     *         the same time
+     */
+    public int getParallelism() {
+        return parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return true to download the files of a remote folder or pattern as
+     *         one tar.gz stream
+     */
+    public boolean isTarStream() {
+        return tarStream;
+    }
+
+    public void setTarStream(boolean tarStream) {
+        this.tarStream = tarStream;
+    }
+
     @Override
     public DescriptorImpl getDescriptor() {
         return (DescriptorImpl) super.getDescriptor();
@@ -2,6 +2,7 @@ package jenkins.plugins.ssh2easy.gssh;
 
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
@@ -11,15 +12,19 @@ import hudson.tasks.Builder;
 import hudson.util.ListBoxModel;
 import java.io.File;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 import jenkins.plugins.ssh2easy.gssh.client.SshClient;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.apache.tools.ant.types.FileSet;
 import org.kohsuke.stapler.StaplerRequest;
 
 public class GsshFtpUploadBuilder extends Builder {
 
     public static final Logger LOGGER = Logger.getLogger(GsshShellBuilder.class.getName());
+    public static final int DEFAULT_PARALLELISM = 4;
     private boolean disable;
     private String serverInfo;
     private String groupName;
@@ -27,12 +32,18 @@ public class GsshFtpUploadBuilder extends Builder {
     private String localFilePath;
     private String remoteLocation;
     private String fileName;
+    private int parallelism;
+    private boolean delta;
+    private boolean skipUnchanged;
+    private boolean tarStream;
 
     public GsshFtpUploadBuilder() {
     }
 
     @DataBoundConstructor
-    public GsshFtpUploadBuilder(boolean disable, String serverInfo, String localFilePath, String remoteLocation, String fileName) {
+    public GsshFtpUploadBuilder(boolean disable, String serverInfo, String localFilePath, String remoteLocation, String fileName,
+            int parallelism, boolean delta, boolean skipUnchanged,
+            boolean tarStream) {
         this.disable = disable;
         this.serverInfo = serverInfo;
         this.ip = Server.parseIp(this.serverInfo);
@@ -40,6 +51,10 @@ public class GsshFtpUploadBuilder extends Builder {
         this.localFilePath = localFilePath;
         this.remoteLocation = remoteLocation;
         this.fileName = fileName;
+        this.parallelism = parallelism;
+        this.delta = delta;
+        this.skipUnchanged = skipUnchanged;
+        this.tarStream = tarStream;
     }
 
     @SuppressWarnings("rawtypes")
@@ -63,11 +78,6 @@ public class GsshFtpUploadBuilder extends Builder {
                 remotePath = ".";
             }
             
-            if (null == fileName || fileName.trim().equals("")) {
-                File file = new File(getLocalFilePath());
-                fileName = file.getName();
-            }
-            
             if (!new File(localPath).isAbsolute()) {
                 logger.println("localFilePath is relative");
                 String JENKINS_HOME = System.getenv("JENKINS_HOME");        
@@ -77,9 +87,31 @@ public class GsshFtpUploadBuilder extends Builder {
                 }
             }
             logger.println("localFilePath: " + localPath);
+
+            if (isPattern(localPath)) {
+                exitStatus = uploadFiles(logger, sshClient, localPath, remotePath);
+                GsshBuilderWrapper.printSplit(logger);
+                return exitStatus == SshClient.STATUS_SUCCESS;
+            }
+
+            if (null == fileName || fileName.trim().equals("")) {
+                File file = new File(getLocalFilePath());
+                fileName = file.getName();
+            }
+            
             File localFile = new File(localPath);
             
-            exitStatus = sshClient.uploadFile(logger, fileName, localFile, remotePath);
+            if (isSkipUnchanged() && localFile.isFile()
+                    && sshClient.isUnchanged(logger, localFile, remotePath + "/" + fileName)) {
+                logger.println("remote file [" + remotePath + "/" + fileName + "] is unchanged , skip to upload");
+                exitStatus = SshClient.STATUS_SUCCESS;
+            } else if (localFile.isDirectory()) {
+                exitStatus = uploadFiles(logger, sshClient, localPath, remotePath + "/" + fileName);
+            } else if (isDelta()) {
+                exitStatus = sshClient.uploadFileDelta(logger, fileName, localFile, remotePath);
+            } else {
+                exitStatus = sshClient.uploadFile(logger, fileName, localFile, remotePath);
+            }
             GsshBuilderWrapper.printSplit(logger);
 
         } catch (Exception e) {
@@ -88,6 +120,52 @@ public class GsshFtpUploadBuilder extends Builder {
         return exitStatus == SshClient.STATUS_SUCCESS;
     }
 
+    /**
+     * Upload a local folder with all its files, or the files matching an ant
+     * pattern, keeping their paths relative to the folder before the first
+     * wildcard.
+     */
+    private int uploadFiles(PrintStream logger, SshClient sshClient, String localPath, String remotePath) {
+        File base;
+        String includes;
+        if (isPattern(localPath)) {
+            String path = localPath.replace('\\', '/');
+            int wildcard = 0;
+            while (path.charAt(wildcard) != '*' && path.charAt(wildcard) != '?') {
+                wildcard++;
+            }
+            int slash = path.lastIndexOf('/', wildcard);
+            base = new File(slash < 0 ? "." : path.substring(0, slash + 1));
+            includes = path.substring(slash + 1);
+        } else {
+            base = new File(localPath);
+            includes = "**/*";
+        }
+        FileSet fileSet = Util.createFileSet(base, includes);
+        String[] files = fileSet.getDirectoryScanner().getIncludedFiles();
+        if (files.length == 0) {
+            logger.println("[GSSH-FTP] ERROR as: no local file matches [" + localPath + "]");
+            return SshClient.STATUS_FAILED;
+        }
+        List<String> uploads = Arrays.asList(files);
+        if (isSkipUnchanged()) {
+            uploads = sshClient.changedFiles(logger, base, uploads, remotePath);
+            logger.println((files.length - uploads.size()) + " of " + files.length
+                    + " files are unchanged , skip to upload them");
+            if (uploads.isEmpty()) {
+                return SshClient.STATUS_SUCCESS;
+            }
+        }
+        if (isTarStream()) {
+            return sshClient.uploadFilesAsTar(logger, base, uploads, remotePath);
+        }
+        return sshClient.uploadFiles(logger, base, uploads, remotePath, getParallelism());
+    }
+
+    private static boolean isPattern(String path) {
+        return path.indexOf('*') >= 0 || path.indexOf('?') >= 0;
+    }
+
     public String getServerInfo() {
         return serverInfo;
     }
@@ -144,6 +222,54 @@ public class GsshFtpUploadBuilder extends Builder {
         this.fileName = fileName;
     }
 
+    /**
+     * @return how many files of a folder or pattern are uploaded at the same
+     *         time
+     */
+    public int getParallelism() {
+        return parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return true to send only the blocks of a single file that differ from
+     *         the remote file
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * @return true to upload only files whose sha256 checksum differs from
+     *         the remote file
+     */
+    public boolean isSkipUnchanged() {
+        return skipUnchanged;
+    }
+
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * @return true to upload the files of a folder or pattern as one tar.gz
+     *         stream unpacked on the server
+     */
+    public boolean isTarStream() {
+        return tarStream;
+    }
+
+    public void setTarStream(boolean tarStream) {
+        this.tarStream = tarStream;
+    }
+
 	// Overridden for better type safety.
     // If your plugin doesn't really define any property on Descriptor,
     // you don't have to do this.
@@ -32,15 +32,19 @@ public class GsshShellBuilder extends Builder {
     private String groupName;
     private String ip;
     private String shell;
+    private int timeout;
+    private int outputTimeout;
 
     public GsshShellBuilder() {
     }
 
     @DataBoundConstructor
-    public GsshShellBuilder(boolean disable, String serverInfo, String shell) {
+    public GsshShellBuilder(boolean disable, String serverInfo, String shell, int timeout, int outputTimeout) {
         this.disable = disable;
         this.serverInfo = serverInfo;
         this.shell = shell;
+        this.timeout = timeout;
+        this.outputTimeout = outputTimeout;
         this.ip = Server.parseIp(this.serverInfo);
         this.groupName = Server.parseServerGroupName(this.serverInfo);
     }
@@ -58,6 +62,7 @@ public class GsshShellBuilder extends Builder {
         // This is where you 'build' the project.
         SshClient sshHandler = GsshBuilderWrapper.DESCRIPTOR.getSshClient(
                 getGroupName(), getIp());
+        sshHandler.setCommandTimeouts(timeout, outputTimeout);
         int exitStatus = sshHandler.executeShell(logger, shell);
         GsshBuilderWrapper.printSplit(logger);
         return exitStatus == SshClient.STATUS_SUCCESS;
@@ -95,6 +100,29 @@ public class GsshShellBuilder extends Builder {
         this.shell = shell;
     }
 
+    /**
+     * @return seconds the commands may run, 0 for the server group's timeout
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return seconds the commands may go without output, 0 for the server
+     *         group's timeout
+     */
+    public int getOutputTimeout() {
+        return outputTimeout;
+    }
+
+    public void setOutputTimeout(int outputTimeout) {
+        this.outputTimeout = outputTimeout;
+    }
+
     public String getServerInfo() {
         return serverInfo;
     }
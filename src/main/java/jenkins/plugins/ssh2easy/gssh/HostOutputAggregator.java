@@ -0,0 +1,272 @@
+package jenkins.plugins.ssh2easy.gssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Merges the output of commands running on several servers at the same time
+ * into one build log without mixing lines of different servers.
+ *
+ * Every server writes to its own stream, which cuts the output into whole
+ * lines prefixed with the server name. Lines are written to the build log
+ * when the log is free, otherwise they wait in a bounded per server buffer.
+ * A server whose buffer is full spills its lines to a temp file, which is
+ * copied to the build log on the next chance, so a chatty server neither
+ * blocks on the log nor eats the heap. Lines of a server that went quiet
+ * after its last try are written by a periodic flush.
+ */
+public class HostOutputAggregator {
+
+    private static final Logger LOGGER = Logger.getLogger(HostOutputAggregator.class.getName());
+
+    public static final int DEFAULT_BUFFER_LIMIT = 64 * 1024;
+
+    /**
+     * Longer lines are cut, a line is never held back for longer than this.
+     */
+    public static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    /**
+     * Milliseconds between two flushes of the lines still held back.
+     */
+    public static final long FLUSH_INTERVAL = 1000;
+
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "GSSH output flush");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final PrintStream target;
+    private final int bufferLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Set<HostOutput> open = new CopyOnWriteArraySet<HostOutput>();
+    private ScheduledFuture<?> flush;
+
+    public HostOutputAggregator(PrintStream target) {
+        this(target, DEFAULT_BUFFER_LIMIT);
+    }
+
+    public HostOutputAggregator(PrintStream target, int bufferLimit) {
+        this.target = target;
+        this.bufferLimit = bufferLimit;
+    }
+
+    /**
+     * @return a stream for the output of one server, close it once the server
+     *         is done to write its remaining output
+     */
+    public PrintStream newHostStream(String host) {
+        HostOutput output = new HostOutput(host);
+        opened(output);
+        return new PrintStream(output, true);
+    }
+
+    private synchronized void opened(HostOutput output) {
+        open.add(output);
+        if (flush == null) {
+            flush = FLUSHER.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (HostOutput output : open) {
+                        try {
+                            output.flushHeld();
+                        } catch (IOException e) {
+                            LOGGER.log(Level.FINE, "flush output of " + output.host + " failed", e);
+                        }
+                    }
+                }
+            }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void finished(HostOutput output) {
+        open.remove(output);
+        if (open.isEmpty() && flush != null) {
+            flush.cancel(false);
+            flush = null;
+        }
+    }
+
+    /**
+     * Write a message to the build log between the lines of the servers.
+     */
+    public void println(String message) {
+        lock.lock();
+        try {
+            target.println(message);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class HostOutput extends OutputStream {
+
+        private final String host;
+        private final byte[] prefix;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private final Deque<byte[]> lines = new ArrayDeque<byte[]>();
+        private int bufferedBytes;
+        private File spill;
+        private OutputStream spillOut;
+        private boolean closed;
+
+        HostOutput(String host) {
+            this.host = host;
+            this.prefix = ("[" + host + "] ").getBytes();
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            line.write(b);
+            if (b == '\n' || line.size() >= MAX_LINE_LENGTH) {
+                endLine();
+                emit(false);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            boolean ended = false;
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n' || line.size() + i - start + 1 >= MAX_LINE_LENGTH) {
+                    line.write(b, start, i - start + 1);
+                    start = i + 1;
+                    endLine();
+                    ended = true;
+                }
+            }
+            line.write(b, start, off + len - start);
+            if (ended) {
+                emit(false);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (line.size() > 0) {
+                    line.write('\n');
+                    endLine();
+                }
+                emit(true);
+            } finally {
+                finished(this);
+            }
+        }
+
+        /**
+         * Write the lines held back since the last try, an incomplete line
+         * stays until it is ended.
+         */
+        synchronized void flushHeld() throws IOException {
+            if (!closed && (!lines.isEmpty() || spillOut != null)) {
+                emit(true);
+            }
+        }
+
+        private void endLine() throws IOException {
+            byte[] bytes = new byte[prefix.length + line.size()];
+            System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+            System.arraycopy(line.toByteArray(), 0, bytes, prefix.length, line.size());
+            if (bytes[bytes.length - 1] != '\n') {
+                bytes = append(bytes, (byte) '\n');
+            }
+            line.reset();
+            if (spillOut == null && bufferedBytes + bytes.length > bufferLimit) {
+                startSpill();
+            }
+            if (spillOut != null) {
+                spillOut.write(bytes);
+            } else {
+                lines.addLast(bytes);
+                bufferedBytes += bytes.length;
+            }
+        }
+
+        private void startSpill() throws IOException {
+            spill = File.createTempFile("gssh-output-", ".log");
+            spillOut = new FileOutputStream(spill);
+            while (!lines.isEmpty()) {
+                spillOut.write(lines.pollFirst());
+            }
+            bufferedBytes = 0;
+        }
+
+        /**
+         * Copy the buffered lines to the build log, waiting for it only when
+         * the server is done.
+         */
+        private void emit(boolean wait) throws IOException {
+            if (wait) {
+                lock.lock();
+            } else if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                if (spillOut != null) {
+                    copySpill();
+                }
+                while (!lines.isEmpty()) {
+                    target.write(lines.pollFirst());
+                }
+                bufferedBytes = 0;
+                target.flush();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void copySpill() throws IOException {
+            spillOut.close();
+            spillOut = null;
+            InputStream in = new FileInputStream(spill);
+            try {
+                byte[] buffer = new byte[8192];
+                int len;
+                while (-1 != (len = in.read(buffer))) {
+                    target.write(buffer, 0, len);
+                }
+            } finally {
+                in.close();
+                if (!spill.delete()) {
+                    LOGGER.log(Level.FINE, "can't delete output spill file {0} of {1}", new Object[]{spill, host});
+                }
+                spill = null;
+            }
+        }
+
+        private byte[] append(byte[] bytes, byte b) {
+            byte[] result = new byte[bytes.length + 1];
+            System.arraycopy(bytes, 0, result, 0, bytes.length);
+            result[bytes.length] = b;
+            return result;
+        }
+    }
+}
@@ -1,27 +1,114 @@
 package jenkins.plugins.ssh2easy.gssh;
 
+import java.util.regex.Pattern;
 import jenkins.plugins.ssh2easy.gssh.client.JenkinsSshClient;
+import jenkins.plugins.ssh2easy.gssh.client.SftpTransferEngine;
 import jenkins.plugins.ssh2easy.gssh.client.SshClient;
+import jenkins.plugins.ssh2easy.gssh.client.SshConnectionPool;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 public class ServerGroup {
 
+    public static final int DEFAULT_KEEP_ALIVE_COUNT_MAX = 3;
+    public static final int DEFAULT_RETRY_DELAY = 1000;
+    public static final int DEFAULT_BREAKER_COOLDOWN = 60;
+
+    /**
+     * Signal names are put into a remote kill command, only letters and
+     * digits are allowed.
+     */
+    public static final Pattern SIGNAL_NAME = Pattern.compile("[A-Z0-9]+");
+
     private String groupName;
     private int port;
     private String username;
     private String password;
     private String privatekey;
+    private int maxSessionsPerHost;
+    private int idleTimeout;
+    private int maxChannelsPerSession;
+    /**
+     * Null for groups saved before the setting existed, they keep uploading
+     * scripts.
+     */
+    private Boolean uploadScripts;
+    /**
+     * Null for groups saved before the setting existed, they keep the debug
+     * copy.
+     */
+    private Boolean keepScriptDebugCopy;
+    /**
+     * KB of the local sftp buffers, the name is kept for the saved groups.
+     */
+    private int sftpRequestSize;
+    private int sftpOutstandingRequests;
+    private boolean resumeTransfers;
+    private boolean compression;
+    private String ciphers;
+    private String kexAlgorithms;
+    private String macs;
+    private boolean tcpNoDelay;
+    private int socketBufferSize;
+    /**
+     * Null for groups saved before the setting existed, they keep the pty.
+     */
+    private Boolean ptyShell;
+    private int commandTimeout;
+    private int outputTimeout;
+    private String timeoutSignal;
+    private int keepAliveInterval;
+    private int keepAliveCountMax;
+    private int retries;
+    private int retryDelay;
+    private int breakerThreshold;
+    private int breakerCooldown;
 
     public ServerGroup() {
     }
 
-    @DataBoundConstructor
     public ServerGroup(String groupName, int port, String username, String password, String privatekey) {
+        this(groupName, port, username, password, privatekey, SshConnectionPool.DEFAULT_MAX_PER_HOST,
+                SshConnectionPool.DEFAULT_IDLE_TIMEOUT, SshConnectionPool.DEFAULT_MAX_CHANNELS, true, true, 0, 0, false, false, "", "", "",
+                false, 0, true, 0, 0, "", 0, 0, 0, 0, 0, 0);
+    }
+
+    @DataBoundConstructor
+    public ServerGroup(String groupName, int port, String username, String password, String privatekey,
+            int maxSessionsPerHost, int idleTimeout, int maxChannelsPerSession, boolean uploadScripts,
+            boolean keepScriptDebugCopy, int sftpRequestSize, int sftpOutstandingRequests,
+            boolean resumeTransfers, boolean compression, String ciphers, String kexAlgorithms, String macs,
+            boolean tcpNoDelay, int socketBufferSize, boolean ptyShell, int commandTimeout, int outputTimeout,
+            String timeoutSignal, int keepAliveInterval, int keepAliveCountMax, int retries, int retryDelay,
+            int breakerThreshold, int breakerCooldown) {
         this.groupName = groupName;
         this.port = port;
         this.username = username;
         this.password = password;
         this.privatekey = privatekey;
+        this.maxSessionsPerHost = maxSessionsPerHost;
+        this.idleTimeout = idleTimeout;
+        this.maxChannelsPerSession = maxChannelsPerSession;
+        this.uploadScripts = uploadScripts;
+        this.keepScriptDebugCopy = keepScriptDebugCopy;
+        this.sftpRequestSize = sftpRequestSize;
+        this.sftpOutstandingRequests = sftpOutstandingRequests;
+        this.resumeTransfers = resumeTransfers;
+        this.compression = compression;
+        this.ciphers = ciphers;
+        this.kexAlgorithms = kexAlgorithms;
+        this.macs = macs;
+        this.tcpNoDelay = tcpNoDelay;
+        this.socketBufferSize = socketBufferSize;
+        this.ptyShell = ptyShell;
+        this.commandTimeout = commandTimeout;
+        this.outputTimeout = outputTimeout;
+        this.timeoutSignal = timeoutSignal;
+        this.keepAliveInterval = keepAliveInterval;
+        this.keepAliveCountMax = keepAliveCountMax;
+        this.retries = retries;
+        this.retryDelay = retryDelay;
+        this.breakerThreshold = breakerThreshold;
+        this.breakerCooldown = breakerCooldown;
     }
 
     public SshClient getSshClient(Server server) {
@@ -71,4 +158,318 @@ public class ServerGroup {
     public void setPassword(String password) {
         this.password = password;
     }
+
+    /**
+     * @return how many pooled ssh connections may be open to one server of
+     *         this group at the same time
+     */
+    public int getMaxSessionsPerHost() {
+        return maxSessionsPerHost > 0 ? maxSessionsPerHost : SshConnectionPool.DEFAULT_MAX_PER_HOST;
+    }
+
+    public void setMaxSessionsPerHost(int maxSessionsPerHost) {
+        this.maxSessionsPerHost = maxSessionsPerHost;
+    }
+
+    /**
+     * @return seconds an unused pooled ssh connection is kept open
+     */
+    public int getIdleTimeout() {
+        return idleTimeout > 0 ? idleTimeout : SshConnectionPool.DEFAULT_IDLE_TIMEOUT;
+    }
+
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return how many channels may run at the same time over one pooled ssh
+     *         connection, 1 gives every command its own connection. Must not
+     *         exceed the MaxSessions setting of the servers' sshd.
+     */
+    public int getMaxChannelsPerSession() {
+        return maxChannelsPerSession > 0 ? maxChannelsPerSession : SshConnectionPool.DEFAULT_MAX_CHANNELS;
+    }
+
+    public void setMaxChannelsPerSession(int maxChannelsPerSession) {
+        this.maxChannelsPerSession = maxChannelsPerSession;
+    }
+
+    /**
+     * @return true to run scripts the old way: upload them with sftp to
+     *         /var, chmod and source them, false to pipe them into the shell
+     *         over one exec channel
+     */
+    public boolean isUploadScripts() {
+        return uploadScripts == null || uploadScripts;
+    }
+
+    public void setUploadScripts(boolean uploadScripts) {
+        this.uploadScripts = uploadScripts;
+    }
+
+    /**
+     * @return true to keep the last streamed script on the server as
+     *         /var/latest_exec_debug.sh
+     */
+    public boolean isKeepScriptDebugCopy() {
+        return keepScriptDebugCopy == null || keepScriptDebugCopy;
+    }
+
+    public void setKeepScriptDebugCopy(boolean keepScriptDebugCopy) {
+        this.keepScriptDebugCopy = keepScriptDebugCopy;
+    }
+
+    /**
+     * @return KB of the local buffers file content is copied through during
+     *         sftp transfers, jsch sizes the sftp requests itself
+     */
+    public int getSftpRequestSize() {
+        return sftpRequestSize > 0 ? sftpRequestSize : SftpTransferEngine.DEFAULT_BUFFER_SIZE / 1024;
+    }
+
+    public void setSftpRequestSize(int sftpRequestSize) {
+        this.sftpRequestSize = sftpRequestSize;
+    }
+
+    /**
+     * @return how many sftp read requests are in flight at the same time, the
+     *         transfer window is this times the size of jsch's read requests
+     */
+    public int getSftpOutstandingRequests() {
+        return sftpOutstandingRequests > 0 ? sftpOutstandingRequests
+                : SftpTransferEngine.DEFAULT_OUTSTANDING_REQUESTS;
+    }
+
+    public void setSftpOutstandingRequests(int sftpOutstandingRequests) {
+        this.sftpOutstandingRequests = sftpOutstandingRequests;
+    }
+
+    /**
+     * @return true to upload and download files through a partial file that
+     *         a later attempt continues, the result is verified by its
+     *         sha256 checksum
+     */
+    public boolean isResumeTransfers() {
+        return resumeTransfers;
+    }
+
+    public void setResumeTransfers(boolean resumeTransfers) {
+        this.resumeTransfers = resumeTransfers;
+    }
+
+    /**
+     * @return true to ask the server for zlib@openssh.com compression, which
+     *         helps on slow links only
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return comma separated ciphers in order of preference, empty for the
+     *         defaults of the ssh library
+     */
+    public String getCiphers() {
+        return ciphers == null ? "" : ciphers.trim();
+    }
+
+    public void setCiphers(String ciphers) {
+        this.ciphers = ciphers;
+    }
+
+    /**
+     * @return comma separated key exchange algorithms in order of preference,
+     *         empty for the defaults of the ssh library
+     */
+    public String getKexAlgorithms() {
+        return kexAlgorithms == null ? "" : kexAlgorithms.trim();
+    }
+
+    public void setKexAlgorithms(String kexAlgorithms) {
+        this.kexAlgorithms = kexAlgorithms;
+    }
+
+    /**
+     * @return comma separated macs in order of preference, empty for the
+     *         defaults of the ssh library
+     */
+    public String getMacs() {
+        return macs == null ? "" : macs.trim();
+    }
+
+    public void setMacs(String macs) {
+        this.macs = macs;
+    }
+
+    /**
+     * @return true to send small packets like interactive commands without
+     *         waiting to fill a full tcp segment
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * @return KB of the tcp send and receive buffers, 0 for the defaults of
+     *         the operating system
+     */
+    public int getSocketBufferSize() {
+        return Math.max(0, socketBufferSize);
+    }
+
+    public void setSocketBufferSize(int socketBufferSize) {
+        this.socketBufferSize = socketBufferSize;
+    }
+
+    /**
+     * @return true to run commands the old way: type them line by line into
+     *         a login shell on a dumb pty, false to pipe them into the shell
+     *         over an exec channel without pty, groups saved by older
+     *         versions keep the pty
+     */
+    public boolean isPtyShell() {
+        return ptyShell == null || ptyShell;
+    }
+
+    public void setPtyShell(boolean ptyShell) {
+        this.ptyShell = ptyShell;
+    }
+
+    /**
+     * @return seconds a command may run before its channel is closed, 0 for
+     *         no limit
+     */
+    public int getCommandTimeout() {
+        return Math.max(0, commandTimeout);
+    }
+
+    public void setCommandTimeout(int commandTimeout) {
+        this.commandTimeout = commandTimeout;
+    }
+
+    /**
+     * @return seconds a command may go without any output before its channel
+     *         is closed, 0 for no limit
+     */
+    public int getOutputTimeout() {
+        return Math.max(0, outputTimeout);
+    }
+
+    public void setOutputTimeout(int outputTimeout) {
+        this.outputTimeout = outputTimeout;
+    }
+
+    /**
+     * @return name of the signal sent to a command that timed out or whose
+     *         build was aborted, like TERM or KILL, empty to only close the
+     *         channel, also when the configured name is not valid
+     */
+    public String getTimeoutSignal() {
+        String signal = normalizeSignal(timeoutSignal);
+        return isValidSignal(signal) ? signal : "";
+    }
+
+    /**
+     * @return the signal name in upper case without SIG prefix
+     */
+    public static String normalizeSignal(String signal) {
+        if (signal == null) {
+            return "";
+        }
+        signal = signal.trim().toUpperCase();
+        return signal.startsWith("SIG") ? signal.substring(3) : signal;
+    }
+
+    public static boolean isValidSignal(String signal) {
+        return signal != null && SIGNAL_NAME.matcher(signal).matches();
+    }
+
+    public void setTimeoutSignal(String timeoutSignal) {
+        this.timeoutSignal = timeoutSignal;
+    }
+
+    /**
+     * @return seconds between two server alive checks of a connection, 0 to
+     *         not check
+     */
+    public int getKeepAliveInterval() {
+        return Math.max(0, keepAliveInterval);
+    }
+
+    public void setKeepAliveInterval(int keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    /**
+     * @return how many server alive checks in a row may go unanswered before
+     *         the connection is closed
+     */
+    public int getKeepAliveCountMax() {
+        return keepAliveCountMax > 0 ? keepAliveCountMax : DEFAULT_KEEP_ALIVE_COUNT_MAX;
+    }
+
+    public void setKeepAliveCountMax(int keepAliveCountMax) {
+        this.keepAliveCountMax = keepAliveCountMax;
+    }
+
+    /**
+     * @return how many times a failed connect, or a transfer that lost its
+     *         connection, is tried again
+     */
+    public int getRetries() {
+        return Math.max(0, retries);
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * @return milliseconds before the first retry, doubled for every further
+     *         retry
+     */
+    public int getRetryDelay() {
+        return retryDelay > 0 ? retryDelay : DEFAULT_RETRY_DELAY;
+    }
+
+    public void setRetryDelay(int retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * @return failed connects in a row after which connects to a host fail
+     *         right away, 0 to always try
+     */
+    public int getBreakerThreshold() {
+        return Math.max(0, breakerThreshold);
+    }
+
+    public void setBreakerThreshold(int breakerThreshold) {
+        this.breakerThreshold = breakerThreshold;
+    }
+
+    /**
+     * @return seconds connects to a host fail right away before it is tried
+     *         again
+     */
+    public int getBreakerCooldown() {
+        return breakerCooldown > 0 ? breakerCooldown : DEFAULT_BREAKER_COOLDOWN;
+    }
+
+    public void setBreakerCooldown(int breakerCooldown) {
+        this.breakerCooldown = breakerCooldown;
+    }
+
+    public SftpTransferEngine getSftpTransferEngine() {
+        return new SftpTransferEngine(getSftpRequestSize() * 1024, getSftpOutstandingRequests());
+    }
 }
@@ -0,0 +1,138 @@
+package jenkins.plugins.ssh2easy.gssh;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import jenkins.plugins.ssh2easy.gssh.client.ServerHealth;
+
+/**
+ * Checks every configured server in the background by opening and logging
+ * in a new ssh connection, and keeps the latest result per server. The
+ * results are shown on the global configuration page, fan-out steps use
+ * them to skip servers that failed their last check.
+ */
+@Extension
+public class ServerHealthChecker extends AsyncPeriodicWork {
+
+    /**
+     * Milliseconds between two checks, set with the system property
+     * jenkins.plugins.ssh2easy.gssh.ServerHealthChecker.recurrence.
+     */
+    public static final long RECURRENCE = Long.getLong(ServerHealthChecker.class.getName() + ".recurrence",
+            TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * How many servers are checked at the same time.
+     */
+    public static final int PARALLELISM = 8;
+
+    /**
+     * Milliseconds the connect of one check may take with the key exchange,
+     * the jsch client bounds its login by it too.
+     */
+    public static final int CHECK_TIMEOUT = 10000;
+
+    /**
+     * Milliseconds a whole check may take, the tcp probe and the ssh connect
+     * each get CHECK_TIMEOUT.
+     */
+    public static final long CHECK_DEADLINE = 3L * CHECK_TIMEOUT;
+
+    private static final ConcurrentMap<String, ServerHealth> HEALTH = new ConcurrentHashMap<String, ServerHealth>();
+
+    public ServerHealthChecker() {
+        super("GSSH server health check");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        checkAll(listener.getLogger(), GsshBuilderWrapper.DESCRIPTOR.getServers());
+    }
+
+    /**
+     * Check the servers with at most {@link #PARALLELISM} at the same time
+     * and forget the results of servers no longer configured. A check still
+     * running at its deadline is cancelled and counts as failed.
+     */
+    public static void checkAll(final PrintStream logger, Server[] servers) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(PARALLELISM, servers.length)));
+        try {
+            Map<Server, Future<ServerHealth>> futures = new LinkedHashMap<Server, Future<ServerHealth>>();
+            for (final Server server : servers) {
+                final ServerGroup group = GsshBuilderWrapper.DESCRIPTOR.getServerGroup(server.getServerGroupName());
+                if (group == null) {
+                    continue;
+                }
+                futures.put(server, executor.submit(new Callable<ServerHealth>() {
+                    @Override
+                    public ServerHealth call() {
+                        return group.getSshClient(server).checkHealth(logger, CHECK_TIMEOUT);
+                    }
+                }));
+            }
+            // checks queue behind each other, every round of PARALLELISM gets its own deadline
+            int rounds = (futures.size() + PARALLELISM - 1) / PARALLELISM;
+            long deadline = System.currentTimeMillis() + Math.max(1, rounds) * CHECK_DEADLINE;
+            Set<String> checked = new HashSet<String>();
+            for (Map.Entry<Server, Future<ServerHealth>> entry : futures.entrySet()) {
+                String info = entry.getKey().getServerInfo();
+                try {
+                    ServerHealth health = entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS);
+                    HEALTH.put(info, health);
+                    logger.println(info + " --> " + health);
+                } catch (ExecutionException e) {
+                    logger.println(info + " --> check failed");
+                    e.getCause().printStackTrace(logger);
+                } catch (TimeoutException e) {
+                    entry.getValue().cancel(true);
+                    ServerHealth health = ServerHealth.timedOut(CHECK_DEADLINE);
+                    HEALTH.put(info, health);
+                    logger.println(info + " --> " + health);
+                }
+                checked.add(info);
+            }
+            HEALTH.keySet().retainAll(checked);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the latest check of the server, null if it wasn't checked yet
+     */
+    public static ServerHealth getHealth(Server server) {
+        return HEALTH.get(server.getServerInfo());
+    }
+
+    /**
+     * @return true if the latest check of the server failed and is not older
+     *         than two check periods, servers without a recent check count
+     *         as healthy
+     */
+    public static boolean isUnhealthy(Server server) {
+        ServerHealth health = getHealth(server);
+        return health != null && !health.isHealthy()
+                && System.currentTimeMillis() - health.getCheckedAt() < 2 * RECURRENCE;
+    }
+}
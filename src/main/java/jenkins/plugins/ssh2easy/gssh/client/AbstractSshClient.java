@@ -1,21 +1,73 @@
 package jenkins.plugins.ssh2easy.gssh.client;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import hudson.FilePath;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
 import jenkins.plugins.ssh2easy.gssh.GsshPluginException;
+import jenkins.plugins.ssh2easy.gssh.ServerGroup;
 import jenkins.plugins.ssh2easy.gssh.Utils;
+import jenkins.plugins.ssh2easy.gssh.client.SftpTransferEngine.TransferStats;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 
 public abstract class AbstractSshClient implements SshClient {
 
     public static final String TEMP_PATH = "/var";
     public static final String LATEEST_EXEC_SHELL_DEBUG = "/var/latest_exec_debug.sh";
 
+    /**
+     * Reads the whole script from stdin before running it, so commands of
+     * the script that read stdin can't swallow the rest of the script.
+     */
+    public static final String STREAM_SHELL = "\"$SHELL\" -c 'eval \"$(cat)\"'";
+    public static final String STREAM_SHELL_WITH_DEBUG = "\"$SHELL\" -c 'eval \"$(tee "
+            + LATEEST_EXEC_SHELL_DEBUG + ")\"'";
+
+    /**
+     * Buffer between the ssh channel and the thread unpacking a downloaded
+     * tar stream.
+     */
+    private static final int PIPE_SIZE = 1024 * 1024;
+
+    private int commandTimeout;
+    private int outputTimeout;
+
+    private static final ExecutorService PARALLEL_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "GSSH parallel channel");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     @Override
     public int uploadFile(PrintStream logger, String fileName, File file,
             String serverLocation) {
@@ -68,7 +120,71 @@ public abstract class AbstractSshClient implements SshClient {
                 localFolder, rf.getName());
     }
 
+    public abstract ServerGroup getServerGroup();
+
+    @Override
+    public void setCommandTimeouts(int timeout, int outputTimeout) {
+        this.commandTimeout = timeout;
+        this.outputTimeout = outputTimeout;
+    }
+
+    /**
+     * @return the deadlines for a command of the build, those of the step
+     *         where set, else those of the server group
+     */
+    CommandWatch newCommandWatch() {
+        ServerGroup group = getServerGroup();
+        return new CommandWatch(commandTimeout > 0 ? commandTimeout : group.getCommandTimeout(),
+                outputTimeout > 0 ? outputTimeout : group.getOutputTimeout());
+    }
+
+    /**
+     * Run a command with one exec channel, the command's stdout is copied to
+     * the given stream and its stderr to the logger. This is meant for the
+     * plugin's own commands like checksums and transfers, they get the
+     * timeouts of the step or the server group like the user's commands,
+     * data sent to their stdin counts as output.
+     *
+     * @param stdin written to the command's stdin, null leaves stdin open
+     * @return the exit status of the command
+     */
+    public int executeCommand(PrintStream logger, String command, StdinSource stdin, OutputStream stdout) {
+        return executeCommand(logger, command, stdin, stdout, newCommandWatch());
+    }
+
+    /**
+     * Run a command with one exec channel until it exits or the watch
+     * expires. An expired watch or an interrupt closes the channel right
+     * away, after sending the signal configured for the server group.
+     */
+    abstract int executeCommand(PrintStream logger, String command, StdinSource stdin, OutputStream stdout,
+            CommandWatch watch);
+
+    /**
+     * Pipe the script into the user's shell on the server over a single exec
+     * channel, optionally keeping a copy as {@link #LATEEST_EXEC_SHELL_DEBUG}.
+     * Nothing is uploaded and no further round trip is needed.
+     */
+    public int executeScript(PrintStream logger, final InputStream script) {
+        String command = getServerGroup().isKeepScriptDebugCopy() ? STREAM_SHELL_WITH_DEBUG : STREAM_SHELL;
+        int status = executeCommand(logger, command, new StdinSource() {
+            @Override
+            public void writeTo(OutputStream stdin) throws IOException {
+                byte[] buffer = new byte[8192];
+                int len;
+                while (-1 != (len = script.read(buffer))) {
+                    stdin.write(buffer, 0, len);
+                }
+            }
+        }, logger, newCommandWatch());
+        logger.println("shell exit status code --> " + status);
+        return status;
+    }
+
     public int executeShellByFTP(PrintStream logger, InputStream shell) {
+        if (!getServerGroup().isUploadScripts()) {
+            return executeScript(logger, shell);
+        }
         Random random = new Random();
 
         String shellName = "tempshell_" + System.currentTimeMillis()
@@ -89,6 +205,9 @@ public abstract class AbstractSshClient implements SshClient {
         Random random = new Random();
         logger.println("execute shell as : ");
         logger.println(shell);
+        if (!getServerGroup().isUploadScripts()) {
+            return executeScript(logger, Utils.getInputStreamFromString(shell));
+        }
         String shellName = "tempshell_" + System.currentTimeMillis()
                 + random.nextInt() + ".sh";
 
@@ -123,6 +242,388 @@ public abstract class AbstractSshClient implements SshClient {
         return executeCommand(logger, "rm -rf " + path);
     }
 
+    @Override
+    public int executeParallel(PrintStream logger, List<Callable<Integer>> operations) {
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>(operations.size());
+        for (Callable<Integer> operation : operations) {
+            futures.add(PARALLEL_EXECUTOR.submit(operation));
+        }
+        int result = STATUS_SUCCESS;
+        try {
+            for (Future<Integer> future : futures) {
+                int status;
+                try {
+                    status = future.get();
+                } catch (ExecutionException e) {
+                    logger.println("[GSSH] parallel operation failed as: " + e.getCause());
+                    status = STATUS_FAILED;
+                }
+                if (result == STATUS_SUCCESS && status != STATUS_SUCCESS) {
+                    result = status;
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<Integer> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new GsshPluginException("interrupted while waiting for parallel operations", e);
+        }
+        return result;
+    }
+
+    /**
+     * @return the sha256 checksum of the remote file, null when the server
+     *         can't compute it
+     */
+    public String remoteSha256(PrintStream logger, String path) {
+        return sha256(logger, "sha256sum " + shellQuote(path));
+    }
+
+    /**
+     * @return the sha256 checksum of the first length bytes of the remote
+     *         file, null when the server can't compute it
+     */
+    public String remoteSha256(PrintStream logger, String path, long length) {
+        return sha256(logger, "head -c " + length + " " + shellQuote(path) + " | sha256sum");
+    }
+
+    private String sha256(PrintStream logger, String command) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = executeCommand(logger, command, null, out);
+        String[] fields = out.toString().trim().split("\\s+");
+        if (status != STATUS_SUCCESS || fields[0].length() != 64) {
+            return null;
+        }
+        return fields[0].toLowerCase();
+    }
+
+    @Override
+    public int uploadFileDelta(PrintStream logger, String fileName, File file, String serverLocation) {
+        String target = remotePath(serverLocation, fileName);
+        DeltaUpload delta = new DeltaUpload(this, logger, file, target);
+        try {
+            if (!delta.prepare()) {
+                logger.println("No block checksums of remote file [ " + target + " ] , upload the whole file");
+                return uploadFile(logger, fileName, file, serverLocation);
+            }
+        } catch (IOException e) {
+            String message = "[GSSH-FTP] ERROR as: can't read local file [" + file + "]";
+            logger.println(message);
+            e.printStackTrace(logger);
+            throw new GsshPluginException(message, e);
+        }
+        if (delta.isUnchanged()) {
+            logger.println("Remote file [ " + target + " ] is equal to [ " + file + " ] , nothing to upload");
+            return STATUS_SUCCESS;
+        }
+        return delta.apply();
+    }
+
+    @Override
+    public boolean isUnchanged(PrintStream logger, File file, String remoteFile) {
+        String remoteSum = remoteSha256(logger, remoteFile);
+        if (remoteSum == null) {
+            return false;
+        }
+        try {
+            return remoteSum.equals(FileChecksum.sha256(file));
+        } catch (IOException e) {
+            String message = "[GSSH-FTP] ERROR as: can't read local file [" + file + "]";
+            logger.println(message);
+            e.printStackTrace(logger);
+            throw new GsshPluginException(message, e);
+        }
+    }
+
+    @Override
+    public List<String> changedFiles(PrintStream logger, File baseDir, List<String> files, String serverLocation) {
+        final List<String> remoteFiles = new ArrayList<String>(files.size());
+        for (String file : files) {
+            remoteFiles.add(file.replace(File.separatorChar, '/'));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // missing files make xargs fail, their checksums are simply absent
+        executeCommand(logger, "cd " + shellQuote(serverLocation) + " && xargs -0 sha256sum --", new StdinSource() {
+            @Override
+            public void writeTo(OutputStream stdin) throws IOException {
+                for (String file : remoteFiles) {
+                    stdin.write((file + '\0').getBytes("UTF-8"));
+                }
+            }
+        }, out);
+        Map<String, String> remoteSums = new HashMap<String, String>();
+        try {
+            for (String line : out.toString("UTF-8").split("\n")) {
+                // sha256sum escapes names with special characters and marks them with a leading backslash
+                if (line.length() > 66 && !line.startsWith("\\")) {
+                    remoteSums.put(line.substring(66), line.substring(0, 64));
+                }
+            }
+            Map<String, String> localSums = FileChecksum.sha256(baseDir, files);
+            List<String> changed = new ArrayList<String>();
+            for (int i = 0; i < files.size(); i++) {
+                if (!localSums.get(files.get(i)).equals(remoteSums.get(remoteFiles.get(i)))) {
+                    changed.add(files.get(i));
+                }
+            }
+            return changed;
+        } catch (IOException e) {
+            String message = "[GSSH-FTP] ERROR as: can't compute checksums of local files below [" + baseDir + "]";
+            logger.println(message);
+            e.printStackTrace(logger);
+            throw new GsshPluginException(message, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GsshPluginException("interrupted while computing checksums", e);
+        }
+    }
+
+    @Override
+    public int uploadFilesAsTar(PrintStream logger, File baseDir, final List<String> files, String serverLocation) {
+        final FilePath base = new FilePath(baseDir);
+        final AtomicLong compressed = new AtomicLong();
+        long size = 0;
+        for (String file : files) {
+            size += new File(baseDir, file).length();
+        }
+        logger.println("Upload " + files.size() + " files from [ " + baseDir + " ] to [ " + serverLocation
+                + " ] as tar.gz stream");
+        String location = shellQuote(serverLocation);
+        long start = System.currentTimeMillis();
+        int status = executeCommand(logger, "mkdir -p " + location + " && tar -xzf - -C " + location,
+                new StdinSource() {
+                    @Override
+                    public void writeTo(OutputStream stdin) throws IOException {
+                        CountingOutputStream counted = new CountingOutputStream(new CloseShieldOutputStream(stdin));
+                        try {
+                            base.tar(FilePath.TarCompression.GZIP.compress(counted), new FileListScanner(files));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("interrupted while writing the tar stream");
+                        } finally {
+                            compressed.set(counted.getByteCount());
+                        }
+                    }
+                }, logger);
+        logger.println("Upload " + files.size() + " files of " + size + " bytes as " + compressed.get()
+                + " compressed bytes " + new TransferStats(compressed.get(), System.currentTimeMillis() - start));
+        return status;
+    }
+
+    @Override
+    public int downloadFilesAsTar(PrintStream logger, String remotePattern, String localFolder) {
+        String[] pattern = splitPattern(remotePattern);
+        final List<String> files = listFiles(logger, pattern[0], pattern[1]);
+        if (files == null || files.isEmpty()) {
+            logger.println("[GSSH - SFTP] ERROR as: no remote file matches [ " + remotePattern + " ]");
+            return STATUS_FAILED;
+        }
+        final FilePath local = new FilePath(new File(localFolder));
+        logger.println("Download " + files.size() + " files from [ " + pattern[0] + " ] to [ " + localFolder
+                + " ] as tar.gz stream");
+        long start = System.currentTimeMillis();
+        Future<Long> unpacking;
+        PipedOutputStream out;
+        try {
+            final PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+            out = new UnpackPipe(in);
+            unpacking = PARALLEL_EXECUTOR.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException, InterruptedException {
+                    CountingInputStream counted = new CountingInputStream(in);
+                    try {
+                        local.untarFrom(counted, FilePath.TarCompression.GZIP);
+                        return counted.getByteCount();
+                    } finally {
+                        // unblocks the ssh channel if unpacking stopped early
+                        in.close();
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new GsshPluginException(e);
+        }
+        int status;
+        GsshPluginException sshFailure = null;
+        try {
+            status = executeCommand(logger, "tar -czf - -C " + shellQuote(pattern[0]) + " --null -T -",
+                    new StdinSource() {
+                        @Override
+                        public void writeTo(OutputStream stdin) throws IOException {
+                            for (String file : files) {
+                                stdin.write((file + '\0').getBytes("UTF-8"));
+                            }
+                        }
+                    }, out);
+        } catch (GsshPluginException e) {
+            // decided once the unpacking is over, it may have stopped the command
+            sshFailure = e;
+            status = STATUS_FAILED;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+            }
+        }
+        try {
+            long compressed = unpacking.get();
+            if (sshFailure != null) {
+                throw sshFailure;
+            }
+            logger.println("Download " + files.size() + " files as " + compressed + " compressed bytes "
+                    + new TransferStats(compressed, System.currentTimeMillis() - start));
+        } catch (ExecutionException e) {
+            logger.println("[GSSH - SFTP] ERROR as: can't unpack the tar stream into [ " + localFolder + " ]");
+            e.getCause().printStackTrace(logger);
+            if (sshFailure == null) {
+                return STATUS_FAILED;
+            }
+            if (sshFailure.getCause() instanceof SessionOutputPump.LocalOutputException) {
+                // the unpacking failed first and closed the pipe, which stopped the command
+                GsshPluginException failure = new GsshPluginException(e.getCause());
+                failure.addSuppressed(sshFailure);
+                throw failure;
+            }
+            throw sshFailure;
+        } catch (InterruptedException e) {
+            unpacking.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new GsshPluginException("interrupted while unpacking the tar stream", e);
+        }
+        return status;
+    }
+
+    /**
+     * Pipe into the thread unpacking a tar stream, its writes block while the
+     * unpacking falls behind.
+     */
+    private static class UnpackPipe extends PipedOutputStream implements SessionOutputPump.BlockingStream {
+
+        UnpackPipe(PipedInputStream in) throws IOException {
+            super(in);
+        }
+    }
+
+    /**
+     * Visits the given files below the folder, for tar streams of a chosen
+     * list of files.
+     */
+    static class FileListScanner extends DirScanner {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> files;
+
+        FileListScanner(List<String> files) {
+            this.files = files;
+        }
+
+        @Override
+        public void scan(File dir, FileVisitor visitor) throws IOException {
+            for (String file : files) {
+                visitor.visit(new File(dir, file), file.replace(File.separatorChar, '/'));
+            }
+        }
+    }
+
+    /**
+     * Split a remote folder ending with / or a pattern like /var/log/*.log
+     * into the folder before the first wildcard and the pattern below it.
+     */
+    protected static String[] splitPattern(String remotePattern) {
+        String pattern = remotePattern.endsWith("/") ? remotePattern + "**" : remotePattern;
+        int wildcard = 0;
+        while (wildcard < pattern.length() && pattern.charAt(wildcard) != '*' && pattern.charAt(wildcard) != '?') {
+            wildcard++;
+        }
+        if (wildcard == pattern.length()) {
+            pattern = pattern + "/**";
+        }
+        int slash = pattern.lastIndexOf('/', wildcard);
+        String base = slash < 0 ? "." : slash == 0 ? "/" : pattern.substring(0, slash);
+        return new String[]{base, pattern.substring(slash + 1)};
+    }
+
+    /**
+     * List the remote files below the folder with one find command.
+     *
+     * @param includes ant pattern relative to the folder, * and ? stay within
+     *        a folder, ** spans folders
+     * @return paths relative to the folder, null if find failed
+     */
+    protected List<String> listFiles(PrintStream logger, String folder, String includes) {
+        String command = "find " + shellQuote(folder);
+        if (!includes.contains("**")) {
+            command += " -maxdepth " + (includes.split("/").length);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (executeCommand(logger, command + " -type f -print0", null, out) != STATUS_SUCCESS) {
+            return null;
+        }
+        Pattern pattern = globToRegex(includes);
+        String prefix = folder.endsWith("/") ? folder : folder + "/";
+        List<String> files = new ArrayList<String>();
+        try {
+            for (String path : out.toString("UTF-8").split("\0")) {
+                if (path.startsWith(prefix)) {
+                    String relative = path.substring(prefix.length());
+                    if (pattern.matcher(relative).matches()) {
+                        files.add(relative);
+                    }
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new GsshPluginException(e);
+        }
+        return files;
+    }
+
+    static Pattern globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (glob.startsWith("**/", i)) {
+                regex.append("(.*/)?");
+                i += 2;
+            } else if (glob.startsWith("**", i)) {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @return the names of a comma separated algorithm list
+     */
+    protected static List<String> splitAlgorithms(String algorithms) {
+        List<String> names = new ArrayList<String>();
+        for (String name : algorithms.split(",")) {
+            if (name.trim().length() > 0) {
+                names.add(name.trim());
+            }
+        }
+        return names;
+    }
+
+    protected static String remotePath(String folder, String fileName) {
+        return folder.endsWith("/") ? folder + fileName : folder + "/" + fileName;
+    }
+
+    /**
+     * Quote the value as a single word for the remote shell.
+     */
+    public static String shellQuote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
     public int executeCommand(PrintStream logger, InputStream command) {
         String content = Utils.getStringFromStream(command);
         return executeCommand(logger, content);
@@ -0,0 +1,56 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The authentication method that last logged in to a host, so the next
+ * connect tries it first instead of walking through the methods the server
+ * group could use.
+ */
+final class AuthMethodCache {
+
+    static final String PUBLICKEY = "publickey";
+    static final String PASSWORD = "password";
+    static final String KEYBOARD_INTERACTIVE = "keyboard-interactive";
+    static final String NONE = "none";
+
+    private static final ConcurrentMap<String, String> METHODS = new ConcurrentHashMap<String, String>();
+
+    private AuthMethodCache() {
+    }
+
+    /**
+     * @return the key a method is remembered under, the user, address, port
+     *         and identity it logged in with
+     */
+    static String key(String username, String ip, int port, String privatekey) {
+        return username + "@" + ip + ":" + port + " " + privatekey;
+    }
+
+    /**
+     * @return the candidate methods with the one that worked last time first
+     */
+    static List<String> order(String host, List<String> candidates) {
+        List<String> ordered = new ArrayList<String>(candidates);
+        String remembered = METHODS.get(host);
+        if (remembered != null && ordered.remove(remembered)) {
+            ordered.add(0, remembered);
+        }
+        return ordered;
+    }
+
+    static void succeeded(String host, String method) {
+        METHODS.put(host, method);
+    }
+
+    /**
+     * Forget the method if it was the remembered one, the server no longer
+     * accepts it.
+     */
+    static void failed(String host, String method) {
+        METHODS.remove(host, method);
+    }
+}
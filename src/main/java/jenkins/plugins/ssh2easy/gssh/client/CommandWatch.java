@@ -0,0 +1,100 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Deadlines of one remote command: the overall timeout counted from the
+ * start and the timeout without any output, both in seconds with 0 for no
+ * limit. The threads waiting for the command poll {@link #check()}.
+ */
+class CommandWatch {
+
+    private final int timeout;
+    private final int outputTimeout;
+    private final long start = System.currentTimeMillis();
+    private volatile long lastOutput = start;
+
+    CommandWatch(int timeout, int outputTimeout) {
+        this.timeout = timeout;
+        this.outputTimeout = outputTimeout;
+    }
+
+    /**
+     * The command wrote something, the output timeout starts over.
+     */
+    void touch() {
+        lastOutput = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the stream touching this watch on every write
+     */
+    OutputStream watch(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                touch();
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                touch();
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                // the target is the build log, only the remote side ends
+                flush();
+            }
+        };
+    }
+
+    /**
+     * @return the stdin of the command checking the deadlines before and
+     *         touching this watch on every write, data sent to the command
+     *         counts as progress like its output
+     */
+    OutputStream watchInput(OutputStream in) {
+        return new FilterOutputStream(in) {
+            @Override
+            public void write(int b) throws IOException {
+                check();
+                touch();
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                check();
+                touch();
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * @throws CommandTimeoutException if one of the deadlines has passed
+     */
+    void check() throws CommandTimeoutException {
+        long now = System.currentTimeMillis();
+        if (timeout > 0 && now - start >= timeout * 1000L) {
+            throw new CommandTimeoutException("command did not finish within " + timeout + " seconds");
+        }
+        if (outputTimeout > 0 && now - lastOutput >= outputTimeout * 1000L) {
+            throw new CommandTimeoutException("command wrote no output for " + outputTimeout + " seconds");
+        }
+    }
+
+    static class CommandTimeoutException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        CommandTimeoutException(String message) {
+            super(message);
+        }
+    }
+}
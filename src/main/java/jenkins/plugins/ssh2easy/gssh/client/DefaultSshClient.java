@@ -1,9 +1,24 @@
 package jenkins.plugins.ssh2easy.gssh.client;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import jenkins.plugins.ssh2easy.gssh.GsshPluginException;
 //import jenkins.plugins.ssh2easy.gssh.GsshUserInfo;
 import jenkins.plugins.ssh2easy.gssh.ServerGroup;
@@ -16,17 +31,67 @@ import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 import com.jcraft.jsch.SftpException;
 import java.io.File;
+import jenkins.plugins.ssh2easy.gssh.client.CommandWatch.CommandTimeoutException;
+import jenkins.plugins.ssh2easy.gssh.client.SftpTransferEngine.TransferStats;
 //import com.jcraft.jsch.UserInfo;
 
 public class DefaultSshClient extends AbstractSshClient {
 
     public static final String SSH_BEY = "\nexit $?";
 
+    /**
+     * Suffix of the partial file a resumable transfer writes to.
+     */
+    public static final String PART_SUFFIX = ".part";
+
+    /**
+     * Milliseconds a new session may take for the tcp connect, the key
+     * exchange and the login, a host that doesn't answer must not block the
+     * build forever.
+     */
+    public static final int CONNECT_TIMEOUT = 30000;
+
+    private static final String NO_SHA256SUM = "skipped , sha256sum is not available on the server";
+
     private String ip;
     private int port;
     private String username;
     private String password;
     private String privatekey;
+    private ServerGroup serverGroup;
+    private SshConnectionPool.PoolKey poolKey;
+
+    private static final SshConnectionPool<Session> SESSION_POOL = new SshConnectionPool<Session>("jsch");
+
+    private final SshConnectionPool.ConnectionFactory<Session> sessionFactory = new SshConnectionPool.ConnectionFactory<Session>() {
+        @Override
+        public Session create(final PrintStream logger) throws Exception {
+            return connect(logger, new Callable<Session>() {
+                @Override
+                public Session call() {
+                    return createSession(logger);
+                }
+            });
+        }
+
+        @Override
+        public boolean validate(Session session) {
+            if (!session.isConnected()) {
+                return false;
+            }
+            try {
+                session.sendKeepAliveMsg();
+                return true;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void destroy(Session session) {
+            session.disconnect();
+        }
+    };
 
     public DefaultSshClient(String ip, int port, String username, String password, String privatekey) {
         this.ip = ip;
@@ -34,6 +99,7 @@ public class DefaultSshClient extends AbstractSshClient {
         this.username = username;
         this.password = password;
         this.privatekey = privatekey;
+        this.serverGroup = new ServerGroup("", port, username, password, privatekey);
     }
 
     public DefaultSshClient(ServerGroup serverGroup, String ip) {
@@ -42,6 +108,7 @@ public class DefaultSshClient extends AbstractSshClient {
         this.password = serverGroup.getPassword();
         this.privatekey = serverGroup.getPrivatekey();
         this.ip = ip;
+        this.serverGroup = serverGroup;
     }
 
     public static SshClient newInstance(String ip, int port, String username, String password, String privatekey) {
@@ -53,88 +120,790 @@ public class DefaultSshClient extends AbstractSshClient {
     }
 
     public Session createSession(PrintStream logger) {
+        return createSession(logger, CONNECT_TIMEOUT);
+    }
+
+    /**
+     * @param timeout milliseconds the connect with the key exchange and the
+     *        login may take
+     */
+    public Session createSession(PrintStream logger, int timeout) {
         JSch jsch = new JSch();
-        Session session = null;
         String mode;
-        boolean usePrikey = false;
+        List<String> methods = new ArrayList<String>();
         try {
             
             java.util.Properties config = new java.util.Properties();
             config.put("StrictHostKeyChecking", "no");
+            applyTransport(logger, config);
             
             if (!privatekey.isEmpty()) {
-                usePrikey = true;
+                jsch.addIdentity(IdentityCache.jschIdentity(privatekey, password), null);
+                methods.add(AuthMethodCache.PUBLICKEY);
                 if (!password.isEmpty()){
-                    jsch.addIdentity(privatekey, password);
                     mode = "privatekey with password";
                 } else {
-                    jsch.addIdentity(privatekey);
                     mode = "privatekey without password";
                 } 
             } else {
+                methods.add(AuthMethodCache.PASSWORD);
+                methods.add(AuthMethodCache.KEYBOARD_INTERACTIVE);
                 mode = "only with password";
             }
-            
-            session = jsch.getSession(username, ip, port);
-            
-            if (!usePrikey)
-            {
-                session.setPassword(password);
-            }
-                       
-            session.setConfig(config);
-            session.setDaemonThread(false);
-            session.connect();
 
-            logger.println("Create ssh session success with " + username + "@" + ip + " to port: " + port + " mode: " + mode);
-            
+            String host = AuthMethodCache.key(username, ip, port, privatekey);
+            JSchException authFailure = null;
+            for (String method : AuthMethodCache.order(host, methods)) {
+                Session session = jsch.getSession(username, ip, port);
+                if (privatekey.isEmpty()) {
+                    session.setPassword(password);
+                }
+                session.setConfig(config);
+                // one method per attempt, so the method that logs in is known
+                session.setConfig("PreferredAuthentications", method);
+                boolean keepAlive = serverGroup.getKeepAliveInterval() > 0;
+                if (serverGroup.isTcpNoDelay() || serverGroup.getSocketBufferSize() > 0 || keepAlive) {
+                    session.setSocketFactory(new TunedSocketFactory(serverGroup.isTcpNoDelay(),
+                            serverGroup.getSocketBufferSize() * 1024, keepAlive, timeout));
+                }
+                if (keepAlive) {
+                    // jsch drops the session after that many unanswered keepalive requests
+                    session.setServerAliveInterval(serverGroup.getKeepAliveInterval() * 1000);
+                    session.setServerAliveCountMax(serverGroup.getKeepAliveCountMax());
+                }
+                // pooled sessions outlive the build step, they must not keep the jvm alive
+                session.setDaemonThread(true);
+                try {
+                    session.connect(timeout);
+                } catch (JSchException e) {
+                    if (!isAuthFailure(e)) {
+                        throw e;
+                    }
+                    AuthMethodCache.failed(host, method);
+                    authFailure = e;
+                    continue;
+                }
+                AuthMethodCache.succeeded(host, method);
+                logger.println("Create ssh session success with " + username + "@" + ip + " to port: " + port
+                        + " mode: " + mode + " (" + method + ")");
+                return session;
+            }
+            throw authFailure;
         } catch (Exception e) {
             logger.println("Create ssh session failed with " + username + "@" + ip + " to port: " + port);
             e.printStackTrace(logger);
             throw new GsshPluginException(e);
         }
-        return session;
     }
-    
-    private int workFile(boolean download, PrintStream logger, String targetFile, String destLocation, String newFileName, InputStream fileContent){
-        Session session = null;
-        ChannelSftp sftp = null;
+
+    private static boolean isAuthFailure(JSchException e) {
+        String message = e.getMessage();
+        return message != null && (message.startsWith("Auth fail") || message.startsWith("Auth cancel"));
+    }
+
+    /**
+     * Put the compression and algorithm preferences of the server group into
+     * the session config, algorithms jsch doesn't implement are left out.
+     */
+    protected void applyTransport(PrintStream logger, java.util.Properties config) {
+        if (serverGroup.isCompression()) {
+            config.put("compression.s2c", "zlib@openssh.com,zlib,none");
+            config.put("compression.c2s", "zlib@openssh.com,zlib,none");
+        }
+        String ciphers = supportedByJsch(logger, "cipher", serverGroup.getCiphers());
+        if (!ciphers.isEmpty()) {
+            config.put("cipher.s2c", ciphers);
+            config.put("cipher.c2s", ciphers);
+        }
+        String kex = supportedByJsch(logger, "kex", serverGroup.getKexAlgorithms());
+        if (!kex.isEmpty()) {
+            config.put("kex", kex);
+        }
+        String macs = supportedByJsch(logger, "mac", serverGroup.getMacs());
+        if (!macs.isEmpty()) {
+            config.put("mac.s2c", macs);
+            config.put("mac.c2s", macs);
+        }
+    }
+
+    private static String supportedByJsch(PrintStream logger, String kind, String algorithms) {
+        StringBuilder supported = new StringBuilder();
+        for (String algorithm : splitAlgorithms(algorithms)) {
+            if (JSch.getConfig(algorithm) == null) {
+                logger.println("[GSSH] " + kind + " " + algorithm + " is not supported by jsch , skip it");
+            } else {
+                supported.append(supported.length() == 0 ? "" : ",").append(algorithm);
+            }
+        }
+        return supported.toString();
+    }
+
+    /**
+     * Lease an authenticated session from the shared pool, give it back with
+     * {@link #releaseSession(Session, Channel, boolean)}.
+     */
+    public Session borrowSession(PrintStream logger) {
+        return SESSION_POOL.borrow(getPoolKey(), logger, sessionFactory, serverGroup.getMaxSessionsPerHost(),
+                serverGroup.getMaxChannelsPerSession(), serverGroup.getIdleTimeout());
+    }
+
+    /**
+     * Connect a channel opened on a leased session. When the server refuses
+     * another channel on a session that is shared with other steps, the lease
+     * is given back and false is returned so the caller borrows again.
+     */
+    protected boolean connectChannel(Session session, Channel channel) throws JSchException {
         try {
-            session = createSession(logger);
-            Channel channel = session.openChannel("sftp");
-            channel.setOutputStream(logger, true);
-            channel.setExtOutputStream(logger, true);
             channel.connect();
-            sftp = (ChannelSftp) channel;
-            sftp.setFilenameEncoding("UTF-8");
-            
-            if (!download) {
-                sftp.cd(destLocation);
-                sftp.put(fileContent, targetFile);
-                logger.println("Upload local file [ " + targetFile + " ] to remote [ " + destLocation + newFileName + " ]");
-            } else {
-                sftp.get(targetFile, destLocation + "/" + newFileName);
-                logger.println("Download remote file [ " + targetFile + " ] to local [ " + destLocation + newFileName + " ]");
+            return true;
+        } catch (JSchException e) {
+            if (session.isConnected() && SESSION_POOL.channelRefused(getPoolKey(), session)) {
+                releaseSession(session, channel, false);
+                return false;
             }
-            return STATUS_SUCCESS;
-             
-        } catch (JSchException | SftpException e) {
+            throw e;
+        }
+    }
+
+    public void releaseSession(Session session, Channel channel, boolean broken) {
+        if (channel != null) {
+            channel.disconnect();
+        }
+        if (session == null) {
+            return;
+        }
+        if (broken || !session.isConnected()) {
+            SESSION_POOL.invalidate(getPoolKey(), session);
+        } else {
+            SESSION_POOL.release(getPoolKey(), session);
+        }
+    }
+
+    protected SshConnectionPool.PoolKey getPoolKey() {
+        if (poolKey == null) {
+            poolKey = new SshConnectionPool.PoolKey(serverGroup.getGroupName(), ip, port, username,
+                    connectionSettings());
+        }
+        return poolKey;
+    }
+
+    /**
+     * @return hash of everything a pooled connection was opened with besides
+     *         the host and user, the password is not kept in the key itself
+     */
+    private String connectionSettings() {
+        StringBuilder settings = new StringBuilder();
+        settings.append(password).append('\0').append(privatekey).append('\0')
+                .append(serverGroup.isCompression()).append('\0')
+                .append(serverGroup.getCiphers()).append('\0')
+                .append(serverGroup.getKexAlgorithms()).append('\0')
+                .append(serverGroup.getMacs()).append('\0')
+                .append(serverGroup.isTcpNoDelay()).append('\0')
+                .append(serverGroup.getSocketBufferSize()).append('\0')
+                .append(serverGroup.getKeepAliveInterval()).append('\0')
+                .append(serverGroup.getKeepAliveCountMax());
+        try {
+            return FileChecksum.toHex(FileChecksum.newDigest().digest(settings.toString().getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static SshConnectionPool<Session> getSessionPool() {
+        return SESSION_POOL;
+    }
+
+    public ServerGroup getServerGroup() {
+        return serverGroup;
+    }
+    
+    /**
+     * Work done with a connected sftp channel.
+     */
+    public interface SftpWork<T> {
+        T run(ChannelSftp sftp) throws SftpException, IOException;
+    }
+
+    /**
+     * Run the work on an sftp channel of a leased session. Session and
+     * channel are given back afterwards, the session is only dropped from the
+     * pool when the ssh connection itself failed. Work that failed with its
+     * connection is repeated on a new one as often as the server group
+     * allows.
+     */
+    public <T> T withSftp(PrintStream logger, SftpWork<T> work) {
+        return withSftp(logger, work, true);
+    }
+
+    /**
+     * @param repeatable false for work that can't run twice, like an upload
+     *        from a stream
+     */
+    public <T> T withSftp(PrintStream logger, SftpWork<T> work, boolean repeatable) {
+        RetryPolicy retry = getRetryPolicy();
+        for (int attempt = 0;; attempt++) {
+            Session session = null;
+            ChannelSftp sftp = null;
+            boolean broken = false;
+            Exception failure;
+            try {
+                while (true) {
+                    session = borrowSession(logger);
+                    Channel channel = session.openChannel("sftp");
+                    channel.setOutputStream(logger, true);
+                    channel.setExtOutputStream(logger, true);
+                    if (connectChannel(session, channel)) {
+                        sftp = (ChannelSftp) channel;
+                        break;
+                    }
+                    session = null;
+                }
+                sftp.setFilenameEncoding("UTF-8");
+                return work.run(sftp);
+            } catch (JSchException e) {
+                broken = true;
+                failure = e;
+            } catch (SftpException e) {
+                logger.println("[GSSH - SFTP] Exception:" + e.getMessage());
+                e.printStackTrace(logger);
+                throw new GsshPluginException(e);    
+            } catch (IOException e) {
+                broken = session != null && !session.isConnected();
+                failure = e;
+            } finally {
+                releaseSession(session, sftp, broken);
+            }
+            if (!broken || !repeatable || !retry.canRetry(attempt)) {
+                logger.println("[GSSH - SFTP] Exception:" + failure.getMessage());
+                failure.printStackTrace(logger);
+                throw new GsshPluginException(failure);
+            }
+            try {
+                retry.pause(logger, attempt, failure);
+            } catch (InterruptedException e) {
+                throw new GsshPluginException(e);
+            }
+        }
+    }
+
+    /**
+     * Open a new connection to the server, repeated after failures as often
+     * as the server group allows. Failures in a row open the circuit breaker
+     * of the host, further connects then fail right away until its cooldown
+     * has passed.
+     */
+    protected <T> T connect(PrintStream logger, Callable<T> connect) throws Exception {
+        String host = HostCircuitBreaker.key(ip, port);
+        HostCircuitBreaker.check(host);
+        RetryPolicy retry = getRetryPolicy();
+        for (int attempt = 0;; attempt++) {
+            try {
+                T connection = connect.call();
+                HostCircuitBreaker.succeeded(host);
+                return connection;
+            } catch (Exception e) {
+                if (!retry.canRetry(attempt)) {
+                    HostCircuitBreaker.failed(host, serverGroup.getBreakerThreshold(),
+                            serverGroup.getBreakerCooldown());
+                    throw e;
+                }
+                retry.pause(logger, attempt, e);
+            }
+        }
+    }
+
+    RetryPolicy getRetryPolicy() {
+        return new RetryPolicy(serverGroup.getRetries(), serverGroup.getRetryDelay());
+    }
+
+    @Override
+    public int uploadFile(final PrintStream logger, final String fileName, final InputStream fileContent,
+            final String serverLocation) {
+        return withSftp(logger, new SftpWork<Integer>() {
+            @Override
+            public Integer run(ChannelSftp sftp) throws SftpException, IOException {
+                sftp.cd(serverLocation);
+                TransferStats stats = getTransferEngine().upload(sftp, fileContent, fileName);
+                logger.println("Upload local file [ " + fileName + " ] to remote [ " + serverLocation + " ] " + stats);
+                return STATUS_SUCCESS;
+            }
+        }, false);
+    }
+
+    @Override
+    public int uploadFile(final PrintStream logger, final String fileName, final File file,
+            final String serverLocation) {
+        if (!file.isFile()) {
+            String message = "[GSSH-FTP] ERROR as: sftp upload local file [" + file + "] can't find !";
+            logger.println(message);
+            throw new GsshPluginException(message);
+        }
+        if (serverGroup.isResumeTransfers()) {
+            return uploadResumable(logger, file, remotePath(serverLocation, fileName));
+        }
+        return withSftp(logger, new SftpWork<Integer>() {
+            @Override
+            public Integer run(ChannelSftp sftp) throws SftpException, IOException {
+                sftp.cd(serverLocation);
+                TransferStats stats = getTransferEngine().upload(sftp, file, fileName);
+                logger.println("Upload local file [ " + file + " ] to remote [ " + serverLocation + "/" + fileName
+                        + " ] " + stats);
+                return STATUS_SUCCESS;
+            }
+        });
+    }
+
+    @Override
+    public int downloadFile(final PrintStream logger, final String remoteFile, final String localFolder,
+            final String fileName) {
+        if (serverGroup.isResumeTransfers()) {
+            return downloadResumable(logger, remoteFile, new File(localFolder, fileName));
+        }
+        return withSftp(logger, new SftpWork<Integer>() {
+            @Override
+            public Integer run(ChannelSftp sftp) throws SftpException, IOException {
+                File local = new File(localFolder, fileName);
+                TransferStats stats = getTransferEngine().download(sftp, remoteFile, local);
+                logger.println("Download remote file [ " + remoteFile + " ] to local [ " + local + " ] " + stats);
+                return STATUS_SUCCESS;
+            }
+        });
+    }
+
+    @Override
+    public int downloadFileInParts(final PrintStream logger, final String remoteFile, String localFolder,
+            String fileName, int parts) {
+        final long size = withSftp(logger, new SftpWork<Long>() {
+            @Override
+            public Long run(ChannelSftp sftp) throws SftpException {
+                return sftp.stat(remoteFile).getSize();
+            }
+        });
+        int count = (int) Math.min(parts, size / SftpTransferEngine.MIN_PART_SIZE);
+        count = Math.min(count, getMaxParallelChannels());
+        if (count <= 1) {
+            return downloadFile(logger, remoteFile, localFolder, fileName);
+        }
+        final File local = new File(localFolder, fileName);
+        // the parts are written into a partial file, the target is only
+        // replaced once the whole file was downloaded and verified
+        final File part = new File(local.getPath() + PART_SUFFIX);
+        logger.println("Download remote file [ " + remoteFile + " ] to local [ " + part + " ] in " + count
+                + " parts");
+        long start = System.currentTimeMillis();
+        RandomAccessFile file = null;
+        boolean downloaded = false;
+        try {
+            file = new RandomAccessFile(part, "rw");
+            file.setLength(size);
+            final FileChannel channel = file.getChannel();
+            long partSize = (size + count - 1) / count;
+            List<Callable<Integer>> operations = new ArrayList<Callable<Integer>>(count);
+            for (long offset = 0; offset < size; offset += partSize) {
+                final long from = offset;
+                final long length = Math.min(partSize, size - offset);
+                operations.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return withSftp(logger, new SftpWork<Integer>() {
+                            @Override
+                            public Integer run(ChannelSftp sftp) throws SftpException, IOException {
+                                getTransferEngine().downloadRange(sftp, remoteFile, channel, from, length);
+                                return STATUS_SUCCESS;
+                            }
+                        });
+                    }
+                });
+            }
+            int status = executeParallel(logger, operations);
+            if (status != STATUS_SUCCESS) {
+                return status;
+            }
+            channel.force(false);
+            downloaded = true;
+        } catch (IOException e) {
             logger.println("[GSSH - SFTP] Exception:" + e.getMessage());
             e.printStackTrace(logger);
-            throw new GsshPluginException(e);    
+            throw new GsshPluginException(e);
         } finally {
-            closeSession(session, sftp);
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                }
+            }
+            if (!downloaded) {
+                deletePart(logger, part);
+            }
+        }
+        logger.println("Download remote file [ " + remoteFile + " ] to local [ " + part + " ] "
+                + new TransferStats(size, System.currentTimeMillis() - start));
+        boolean renamed = false;
+        try {
+            int status = verifyDownload(logger, remoteFile, part, size);
+            if (status != STATUS_SUCCESS) {
+                return status;
+            }
+            if (local.exists() && !local.delete() || !part.renameTo(local)) {
+                String message = "[GSSH - SFTP] ERROR as: can't rename [ " + part + " ] to [ " + local + " ]";
+                logger.println(message);
+                throw new GsshPluginException(message);
+            }
+            renamed = true;
+            return STATUS_SUCCESS;
+        } finally {
+            if (!renamed) {
+                deletePart(logger, part);
+            }
         }
     }
-    
+
+    private static void deletePart(PrintStream logger, File part) {
+        if (part.exists() && !part.delete()) {
+            logger.println("can't delete local file [ " + part + " ]");
+        }
+    }
+
     @Override
-    public int uploadFile(PrintStream logger, String fileName, InputStream fileContent, String serverLocation) {
-        return workFile(false, logger, fileName, serverLocation, "", fileContent);
+    public int uploadFiles(final PrintStream logger, final File baseDir, List<String> files,
+            final String serverLocation, int parallelism) {
+        final Set<String> folders = new TreeSet<String>();
+        folders.add(serverLocation);
+        for (String file : files) {
+            String path = file.replace(File.separatorChar, '/');
+            int slash = path.lastIndexOf('/');
+            if (slash > 0) {
+                folders.add(remotePath(serverLocation, path.substring(0, slash)));
+            }
+        }
+        int status = executeCommand(logger, "xargs -0 mkdir -p --", new StdinSource() {
+            @Override
+            public void writeTo(OutputStream stdin) throws IOException {
+                for (String folder : folders) {
+                    stdin.write((folder + '\0').getBytes("UTF-8"));
+                }
+            }
+        }, logger);
+        if (status != STATUS_SUCCESS) {
+            logger.println("[GSSH - SFTP] ERROR as: can't create remote folders below [ " + serverLocation + " ]");
+            return status;
+        }
+        final Queue<String> queue = new ConcurrentLinkedQueue<String>(files);
+        final AtomicLong bytes = new AtomicLong();
+        int workers = Math.max(1, Math.min(Math.min(parallelism, files.size()), getMaxParallelChannels()));
+        logger.println("Upload " + files.size() + " files from [ " + baseDir + " ] to [ " + serverLocation + " ] with "
+                + workers + " channels");
+        List<Callable<Integer>> operations = new ArrayList<Callable<Integer>>(workers);
+        for (int i = 0; i < workers; i++) {
+            operations.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return withSftp(logger, new SftpWork<Integer>() {
+                        @Override
+                        public Integer run(ChannelSftp sftp) throws SftpException, IOException {
+                            String file;
+                            while ((file = queue.poll()) != null) {
+                                String remote = remotePath(serverLocation, file.replace(File.separatorChar, '/'));
+                                TransferStats stats = getTransferEngine().upload(sftp, new File(baseDir, file), remote);
+                                bytes.addAndGet(stats.getBytes());
+                                logger.println("Upload [ " + file + " ] " + stats);
+                            }
+                            return STATUS_SUCCESS;
+                        }
+                    });
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        status = executeParallel(logger, operations);
+        logger.println("Upload " + files.size() + " files to [ " + serverLocation + " ] "
+                + new TransferStats(bytes.get(), System.currentTimeMillis() - start));
+        return status;
     }
 
     @Override
-    public int downloadFile(PrintStream logger, String remoteFile, String localFolder, String fileName) {
-        return workFile(true, logger, remoteFile, localFolder, fileName, null);
+    public int downloadFiles(final PrintStream logger, String remotePattern, final String localFolder,
+            int parallelism) {
+        String[] pattern = splitPattern(remotePattern);
+        final String base = pattern[0];
+        final List<String> files = listFiles(logger, base, pattern[1]);
+        if (files == null || files.isEmpty()) {
+            logger.println("[GSSH - SFTP] ERROR as: no remote file matches [ " + remotePattern + " ]");
+            return STATUS_FAILED;
+        }
+        final Queue<String> queue = new ConcurrentLinkedQueue<String>(files);
+        final AtomicLong bytes = new AtomicLong();
+        int workers = Math.max(1, Math.min(Math.min(parallelism, files.size()), getMaxParallelChannels()));
+        logger.println("Download " + files.size() + " files from [ " + base + " ] to [ " + localFolder + " ] with "
+                + workers + " channels");
+        List<Callable<Integer>> operations = new ArrayList<Callable<Integer>>(workers);
+        for (int i = 0; i < workers; i++) {
+            operations.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return withSftp(logger, new SftpWork<Integer>() {
+                        @Override
+                        public Integer run(ChannelSftp sftp) throws SftpException, IOException {
+                            String file;
+                            while ((file = queue.poll()) != null) {
+                                File local = new File(localFolder, file);
+                                File folder = local.getParentFile();
+                                if (!folder.isDirectory() && !folder.mkdirs()) {
+                                    throw new IOException("can't create local folder " + folder);
+                                }
+                                TransferStats stats = getTransferEngine().download(sftp, remotePath(base, file),
+                                        local);
+                                bytes.addAndGet(stats.getBytes());
+                                logger.println("Download [ " + file + " ] " + stats);
+                            }
+                            return STATUS_SUCCESS;
+                        }
+                    });
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        int status = executeParallel(logger, operations);
+        logger.println("Download " + files.size() + " files to [ " + localFolder + " ] "
+                + new TransferStats(bytes.get(), System.currentTimeMillis() - start));
+        return status;
+    }
+
+    /**
+     * @return how many channels the pool hands out to this server at the same
+     *         time, more parallel transfers would only wait for a channel
+     *         until the borrow times out
+     */
+    protected int getMaxParallelChannels() {
+        return serverGroup.getMaxSessionsPerHost() * serverGroup.getMaxChannelsPerSession();
+    }
+
+    /**
+     * Upload into a partial file next to the target and rename it once its
+     * checksum matches. A partial file left by a failed upload is continued
+     * when its content matches the start of the local file, also by the
+     * retries after a lost connection.
+     */
+    protected int uploadResumable(final PrintStream logger, final File file, final String target) {
+        final String part = target + PART_SUFFIX;
+        RetryPolicy retry = getRetryPolicy();
+        TransferStats stats;
+        MessageDigest streamed;
+        for (int attempt = 0;; attempt++) {
+            long partSize = withSftp(logger, new SftpWork<Long>() {
+                @Override
+                public Long run(ChannelSftp sftp) throws SftpException {
+                    return size(sftp, part);
+                }
+            });
+            MessageDigest digest = null;
+            try {
+                if (partSize > 0 && partSize <= file.length()) {
+                    digest = FileChecksum.digest(file, partSize);
+                    if (!FileChecksum.peek(digest).equals(remoteSha256(logger, part, partSize))) {
+                        logger.println("Partial remote file [ " + part + " ] can't be verified , upload from the start");
+                        digest = null;
+                    }
+                }
+            } catch (IOException e) {
+                logger.println("[GSSH - SFTP] Exception:" + e.getMessage());
+                e.printStackTrace(logger);
+                throw new GsshPluginException(e);
+            }
+            final long offset = digest == null ? 0 : partSize;
+            final MessageDigest attemptDigest = digest == null ? FileChecksum.newDigest() : digest;
+            if (offset > 0) {
+                logger.println("Resume upload of [ " + file + " ] at " + offset + " of " + file.length() + " bytes");
+            }
+            try {
+                stats = withSftp(logger, new SftpWork<TransferStats>() {
+                    @Override
+                    public TransferStats run(ChannelSftp sftp) throws SftpException, IOException {
+                        return getTransferEngine().upload(sftp, file, part, offset, attemptDigest);
+                    }
+                }, false);
+                streamed = attemptDigest;
+                break;
+            } catch (GsshPluginException e) {
+                pauseResumable(logger, retry, attempt, e);
+            }
+        }
+        logger.println("Upload local file [ " + file + " ] to remote [ " + part + " ] " + stats);
+        String localSum = FileChecksum.toHex(streamed.digest());
+        String remoteSum = remoteSha256(logger, part);
+        if (remoteSum != null && !remoteSum.equals(localSum)) {
+            logger.println("[GSSH - SFTP] ERROR as: sha256 of remote file [ " + part + " ] is " + remoteSum
+                    + " , local file has " + localSum);
+            withSftp(logger, new SftpWork<Void>() {
+                @Override
+                public Void run(ChannelSftp sftp) throws SftpException {
+                    sftp.rm(part);
+                    return null;
+                }
+            });
+            return STATUS_FAILED;
+        }
+        final String verified = remoteSum == null ? NO_SHA256SUM : remoteSum;
+        return withSftp(logger, new SftpWork<Integer>() {
+            @Override
+            public Integer run(ChannelSftp sftp) throws SftpException {
+                // without sha256sum at least the size has to match
+                long partSize = size(sftp, part);
+                if (partSize != file.length()) {
+                    logger.println("[GSSH - SFTP] ERROR as: remote file [ " + part + " ] has " + partSize
+                            + " bytes , local file has " + file.length());
+                    if (partSize >= 0) {
+                        sftp.rm(part);
+                    }
+                    return STATUS_FAILED;
+                }
+                if (size(sftp, target) >= 0) {
+                    sftp.rm(target);
+                }
+                sftp.rename(part, target);
+                logger.println("Verified sha256 " + verified + " of [ " + target + " ]");
+                return STATUS_SUCCESS;
+            }
+        });
+    }
+
+    /**
+     * Download into a partial file next to the local file and rename it once
+     * its checksum matches. A partial file left by a failed download is
+     * continued when its content matches the start of the remote file, also
+     * by the retries after a lost connection.
+     */
+    protected int downloadResumable(final PrintStream logger, final String remoteFile, File local) {
+        final File part = new File(local.getPath() + PART_SUFFIX);
+        long size = withSftp(logger, new SftpWork<Long>() {
+            @Override
+            public Long run(ChannelSftp sftp) throws SftpException {
+                return sftp.stat(remoteFile).getSize();
+            }
+        });
+        RetryPolicy retry = getRetryPolicy();
+        TransferStats stats;
+        MessageDigest streamed;
+        for (int attempt = 0;; attempt++) {
+            MessageDigest digest = null;
+            long partSize = part.length();
+            try {
+                if (partSize > 0 && partSize <= size) {
+                    digest = FileChecksum.digest(part, partSize);
+                    if (!FileChecksum.peek(digest).equals(remoteSha256(logger, remoteFile, partSize))) {
+                        logger.println("Partial local file [ " + part + " ] can't be verified , download from the start");
+                        digest = null;
+                    }
+                }
+            } catch (IOException e) {
+                logger.println("[GSSH - SFTP] Exception:" + e.getMessage());
+                e.printStackTrace(logger);
+                throw new GsshPluginException(e);
+            }
+            final long offset = digest == null ? 0 : partSize;
+            final MessageDigest attemptDigest = digest == null ? FileChecksum.newDigest() : digest;
+            if (offset > 0) {
+                logger.println("Resume download of [ " + remoteFile + " ] at " + offset + " of " + size + " bytes");
+            }
+            try {
+                stats = withSftp(logger, new SftpWork<TransferStats>() {
+                    @Override
+                    public TransferStats run(ChannelSftp sftp) throws SftpException, IOException {
+                        return getTransferEngine().download(sftp, remoteFile, part, offset, attemptDigest);
+                    }
+                }, false);
+                streamed = attemptDigest;
+                break;
+            } catch (GsshPluginException e) {
+                pauseResumable(logger, retry, attempt, e);
+            }
+        }
+        logger.println("Download remote file [ " + remoteFile + " ] to local [ " + part + " ] " + stats);
+        String localSum = FileChecksum.toHex(streamed.digest());
+        String remoteSum = remoteSha256(logger, remoteFile);
+        if (part.length() != size || (remoteSum != null && !remoteSum.equals(localSum))) {
+            logger.println("[GSSH - SFTP] ERROR as: local file [ " + part + " ] with " + part.length()
+                    + " bytes and sha256 " + localSum + " doesn't match remote file with " + size
+                    + " bytes and sha256 " + remoteSum);
+            if (!part.delete()) {
+                logger.println("can't delete local file [ " + part + " ]");
+            }
+            return STATUS_FAILED;
+        }
+        if (local.exists() && !local.delete() || !part.renameTo(local)) {
+            String message = "[GSSH - SFTP] ERROR as: can't rename [ " + part + " ] to [ " + local + " ]";
+            logger.println(message);
+            throw new GsshPluginException(message);
+        }
+        logger.println("Verified sha256 " + (remoteSum == null ? NO_SHA256SUM : localSum) + " of [ " + local + " ]");
+        return STATUS_SUCCESS;
+    }
+
+    /**
+     * Wait before a resumable transfer starts over from its partial file,
+     * failures of the transfer itself and failures left after the last retry
+     * are thrown again.
+     */
+    private void pauseResumable(PrintStream logger, RetryPolicy retry, int attempt, GsshPluginException failure) {
+        Throwable cause = failure.getCause();
+        if (!(cause instanceof JSchException || cause instanceof IOException)
+                || cause instanceof InterruptedIOException || !retry.canRetry(attempt)) {
+            throw failure;
+        }
+        try {
+            retry.pause(logger, attempt, (Exception) cause);
+        } catch (InterruptedException e) {
+            throw new GsshPluginException(e);
+        }
+    }
+
+    /**
+     * @return the size of the remote file, -1 if it doesn't exist
+     */
+    protected static long size(ChannelSftp sftp, String path) throws SftpException {
+        try {
+            return sftp.stat(path).getSize();
+        } catch (SftpException e) {
+            if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                return -1;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Compare size and sha256 checksum of the downloaded file with the remote
+     * file, only the size when the server has no sha256sum.
+     */
+    protected int verifyDownload(PrintStream logger, String remoteFile, File local, long size) {
+        if (local.length() != size) {
+            logger.println("[GSSH - SFTP] ERROR as: local file [ " + local + " ] has " + local.length()
+                    + " bytes , remote file has " + size);
+            return STATUS_FAILED;
+        }
+        String remoteSum = remoteSha256(logger, remoteFile);
+        if (remoteSum == null) {
+            logger.println("sha256sum is not available on the server , checked the file size only");
+            return STATUS_SUCCESS;
+        }
+        try {
+            String localSum = FileChecksum.sha256(local);
+            if (!localSum.equals(remoteSum)) {
+                logger.println("[GSSH - SFTP] ERROR as: sha256 of local file [ " + local + " ] is " + localSum
+                        + " , remote file has " + remoteSum);
+                return STATUS_FAILED;
+            }
+            logger.println("Verified sha256 " + localSum + " of [ " + local + " ]");
+            return STATUS_SUCCESS;
+        } catch (IOException e) {
+            logger.println("[GSSH - SFTP] Exception:" + e.getMessage());
+            e.printStackTrace(logger);
+            throw new GsshPluginException(e);
+        }
+    }
+
+    protected SftpTransferEngine getTransferEngine() {
+        return serverGroup.getSftpTransferEngine();
     }
 
     @Override
@@ -144,69 +913,118 @@ public class DefaultSshClient extends AbstractSshClient {
 
     @Override
     public int executeCommand(PrintStream logger, String command) {
+        String wrapperCommand = wrapperInput(command);
+        logger.print("execute below commands:");
+        logger.print(wrapperCommand);
+        logger.flush();
+        int status = executeCommand(logger, wrapperCommand, null, logger, newCommandWatch());
+        logger.println("shell exit status code --> " + status);
+        return status;
+    }
 
+    @Override
+    int executeCommand(PrintStream logger, String command, StdinSource stdin, OutputStream stdout,
+            CommandWatch watch) {
         Session session = null;
         ChannelExec channel = null;
-        InputStream in = null;
+        boolean broken = false;
         try {
-            String wrapperCommand = wrapperInput(command);
-            logger.write("execute below commands:".getBytes());
-            logger.write(wrapperCommand.getBytes());
-            logger.flush();
-            session = createSession(logger);
-            channel = (ChannelExec) session.openChannel("exec");
-            channel.setOutputStream(logger, true);
-            channel.setExtOutputStream(logger, true);
-            channel.setPty(Boolean.FALSE);
-            channel.setCommand(wrapperCommand);
-            channel.connect();
-            Thread.sleep(1000);
+            ExecOutputStream out = new ExecOutputStream(watch.watch(stdout));
             while (true) {
-                byte[] buffer = new byte[2048];
-                int len = -1;
-                in = channel.getInputStream();
-                while (-1 != (len = in.read(buffer))) {
-                    logger.write(buffer, 0, len);
-                    logger.flush();
-                }
-                if (channel.isEOF()) {
+                session = borrowSession(logger);
+                channel = (ChannelExec) session.openChannel("exec");
+                channel.setInputStream(null);
+                channel.setOutputStream(out);
+                channel.setExtOutputStream(watch.watch(logger), true);
+                channel.setPty(Boolean.FALSE);
+                channel.setCommand(command);
+                if (connectChannel(session, channel)) {
                     break;
                 }
-                if (!channel.isConnected()) {
-                    break;
-                }
-                if (channel.isClosed()) {
-                    break;
+                session = null;
+                channel = null;
+            }
+            if (stdin != null) {
+                OutputStream in = watch.watchInput(channel.getOutputStream());
+                try {
+                    stdin.writeTo(in);
+                } finally {
+                    in.close();
                 }
-                Thread.sleep(1000);
             }
-            int status = channel.getExitStatus();
-            logger.println("shell exit status code --> " + status);
+            int status = out.waitForExitStatus(channel, watch);
+            broken = !session.isConnected();
             return status;
+        } catch (CommandTimeoutException e) {
+            // only this channel is closed, the session may serve other steps
+            logger.println("[GSSH]-cmd Exception:" + e.getMessage());
+            signal(logger, channel);
+            throw new GsshPluginException(e);
         } catch (IOException e) {
+            broken = true;
             logger.println("[GSSH]-cmd Exception:" + e.getMessage());
             e.printStackTrace(logger);
-            closeSession(session, channel);
             throw new GsshPluginException(e);
 
         } catch (JSchException e) {
+            broken = true;
             logger.println("[GSSH]-cmd Exception:" + e.getMessage());
             e.printStackTrace(logger);
-            closeSession(session, channel);
             throw new GsshPluginException(e);
         } catch (InterruptedException e) {
-            logger.println("[GSSH]-cmd Exception:" + e.getMessage());
-            e.printStackTrace(logger);
-            closeSession(session, channel);
+            broken = true;
+            logger.println("[GSSH]-cmd Exception: aborted");
+            signal(logger, channel);
             throw new GsshPluginException(e);
         } finally {
-            if (null != in) {
-                try {
-                    in.close();
-                } catch (IOException e) {
-                }
+            releaseSession(session, channel, broken);
+        }
+    }
+
+    /**
+     * Send the signal of the server group to a command that timed out or
+     * whose build was aborted, before its channel is closed.
+     */
+    private void signal(PrintStream logger, Channel channel) {
+        String signal = serverGroup.getTimeoutSignal();
+        if (channel == null || signal.isEmpty()) {
+            return;
+        }
+        try {
+            channel.sendSignal(signal);
+            logger.println("sent SIG" + signal + " to the remote command");
+        } catch (Exception e) {
+            logger.println("sending SIG" + signal + " to the remote command failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Time a plain tcp connect, then a new ssh session with key exchange and
+     * login, both outside of the pool. Jsch doesn't report when its key
+     * exchange ends, so it counts to the login here.
+     */
+    @Override
+    public ServerHealth checkHealth(PrintStream logger, int timeout) {
+        long start = System.currentTimeMillis();
+        long connected = start;
+        Session session = null;
+        try {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(ip, port), timeout);
+            } finally {
+                socket.close();
             }
-            closeSession(session, channel);
+            connected = System.currentTimeMillis();
+            session = createSession(logger, timeout);
+            HostCircuitBreaker.succeeded(HostCircuitBreaker.key(ip, port));
+            return ServerHealth.healthy(connected - start, System.currentTimeMillis() - connected);
+        } catch (IOException e) {
+            return ServerHealth.failed(System.currentTimeMillis() - start, e);
+        } catch (GsshPluginException e) {
+            return ServerHealth.failed(System.currentTimeMillis() - start, e.getCause() == null ? e : e.getCause());
+        } finally {
+            closeSession(session, null);
         }
     }
 
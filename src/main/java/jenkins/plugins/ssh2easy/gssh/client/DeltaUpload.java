@@ -0,0 +1,199 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.plugins.ssh2easy.gssh.client.SftpTransferEngine.TransferStats;
+
+/**
+ * Updates a remote file that is mostly equal to the local one by sending only
+ * the blocks that changed.
+ *
+ * The server lists the md5 of every fixed size block of its copy with one
+ * exec of split, the blocks are compared with the local file, and a second
+ * exec copies the remote file, writes the changed blocks at their offsets
+ * with dd, checks the sha256 of the result and moves it over the target.
+ * Blocks are compared at the same offset, so this pays off for files changed
+ * in place, like rebuilt archives and images, not for data shifted by
+ * inserts.
+ */
+class DeltaUpload {
+
+    static final int BLOCK_SIZE = 128 * 1024;
+
+    static final String DELTA_SUFFIX = ".delta";
+
+    private final AbstractSshClient client;
+    private final PrintStream logger;
+    private final File file;
+    private final String target;
+    private final List<long[]> runs = new ArrayList<long[]>();
+    private String sha256;
+    private long changedBytes;
+    private long remoteBlockCount;
+    private long localBlockCount;
+
+    DeltaUpload(AbstractSshClient client, PrintStream logger, File file, String target) {
+        this.client = client;
+        this.logger = logger;
+        this.file = file;
+        this.target = target;
+    }
+
+    /**
+     * Compare the local file with the block checksums of the remote copy.
+     *
+     * @return false if there is no remote copy or the server can't list its
+     *         block checksums, the file has to be uploaded in full then
+     */
+    boolean prepare() throws IOException {
+        String quoted = AbstractSshClient.shellQuote(target);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = client.executeCommand(logger, "test -f " + quoted + " && split -b " + BLOCK_SIZE
+                + " --filter=md5sum " + quoted, null, out);
+        if (status != SshClient.STATUS_SUCCESS) {
+            return false;
+        }
+        List<String> remoteBlocks = new ArrayList<String>();
+        for (String line : out.toString("UTF-8").split("\n")) {
+            if (line.trim().length() > 0) {
+                remoteBlocks.add(line.trim().split("\\s+")[0]);
+            }
+        }
+        compare(remoteBlocks);
+        return true;
+    }
+
+    private void compare(List<String> remoteBlocks) throws IOException {
+        MessageDigest block = newMd5();
+        MessageDigest whole = FileChecksum.newDigest();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            long index = 0;
+            while (read(channel, buffer) > 0) {
+                buffer.flip();
+                int length = buffer.remaining();
+                block.update(buffer.duplicate());
+                whole.update(buffer);
+                String md5 = FileChecksum.toHex(block.digest());
+                if (index >= remoteBlocks.size() || !remoteBlocks.get((int) index).equals(md5)) {
+                    addChanged(index, length);
+                }
+                buffer.clear();
+                index++;
+            }
+            localBlockCount = index;
+        } finally {
+            in.close();
+        }
+        sha256 = FileChecksum.toHex(whole.digest());
+        remoteBlockCount = remoteBlocks.size();
+    }
+
+    private void addChanged(long index, int length) {
+        long[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+        if (last != null && last[0] * BLOCK_SIZE + last[1] == index * BLOCK_SIZE) {
+            last[1] += length;
+        } else {
+            runs.add(new long[]{index, length});
+        }
+        changedBytes += length;
+    }
+
+    /**
+     * Send the changed blocks and replace the remote file once the result has
+     * the checksum of the local file.
+     */
+    int apply() {
+        logger.println("Delta upload of [ " + file + " ] to [ " + target + " ] sends " + changedBytes + " of "
+                + file.length() + " bytes in " + runs.size() + " ranges");
+        String quoted = AbstractSshClient.shellQuote(target);
+        String delta = AbstractSshClient.shellQuote(target + DELTA_SUFFIX);
+        String script = "set -e; cp -f " + quoted + " " + delta + "; "
+                + "while read -r block length; do head -c \"$length\" | dd of=" + delta + " bs=" + BLOCK_SIZE
+                + " seek=\"$block\" conv=notrunc 2>/dev/null; done; "
+                + "truncate -s " + file.length() + " " + delta + "; "
+                + "if ! echo '" + sha256 + "  '" + delta + " | sha256sum -c --status; then rm -f " + delta
+                + "; echo 'sha256 of the patched file does not match' >&2; exit 1; fi; "
+                + "mv -f " + delta + " " + quoted;
+        long start = System.currentTimeMillis();
+        int status = client.executeCommand(logger, script, new StdinSource() {
+            @Override
+            public void writeTo(OutputStream stdin) throws IOException {
+                writeRuns(stdin);
+            }
+        }, logger);
+        if (status == SshClient.STATUS_SUCCESS) {
+            logger.println("Verified sha256 " + sha256 + " of [ " + target + " ] "
+                    + new TransferStats(changedBytes, System.currentTimeMillis() - start));
+        }
+        return status;
+    }
+
+    private void writeRuns(OutputStream stdin) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            byte[] chunk = new byte[BLOCK_SIZE];
+            for (long[] run : runs) {
+                stdin.write((run[0] + " " + run[1] + "\n").getBytes("UTF-8"));
+                channel.position(run[0] * BLOCK_SIZE);
+                long remaining = run[1];
+                while (remaining > 0) {
+                    buffer.limit((int) Math.min(BLOCK_SIZE, remaining));
+                    int len = channel.read(buffer);
+                    if (len < 0) {
+                        throw new IOException("local file " + file + " changed during the upload");
+                    }
+                    buffer.flip();
+                    buffer.get(chunk, 0, len);
+                    stdin.write(chunk, 0, len);
+                    buffer.clear();
+                    remaining -= len;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Fill the buffer unless the file ends first, so every block but the
+     * last has the full block size like the blocks of split.
+     */
+    private static int read(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported by this jvm", e);
+        }
+    }
+
+    /**
+     * @return true if every block of the remote copy equals the local file
+     */
+    boolean isUnchanged() {
+        return runs.isEmpty() && remoteBlockCount == localBlockCount;
+    }
+}
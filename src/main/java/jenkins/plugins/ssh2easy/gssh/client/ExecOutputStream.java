@@ -0,0 +1,80 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import com.jcraft.jsch.Channel;
+import jenkins.plugins.ssh2easy.gssh.client.CommandWatch.CommandTimeoutException;
+
+/**
+ * Receives the stdout of a jsch exec channel. Jsch pushes the remote output
+ * from its session thread as soon as it arrives and closes this stream when
+ * the remote side sends EOF, which wakes up the thread waiting for the
+ * command to finish. The target stream itself is never closed.
+ */
+class ExecOutputStream extends OutputStream {
+
+    /**
+     * Upper bound between two checks of the channel state, only matters when
+     * the connection drops without the channel being closed properly.
+     */
+    private static final long CHECK_INTERVAL = 100;
+
+    /**
+     * Delay between two checks for the exit status, which the server sends
+     * right after the EOF.
+     */
+    private static final long EXIT_STATUS_INTERVAL = 2;
+
+    private final OutputStream target;
+    private boolean eof;
+
+    ExecOutputStream(OutputStream target) {
+        this.target = target;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        target.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        target.write(b, off, len);
+        target.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        target.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            target.flush();
+        } finally {
+            synchronized (this) {
+                eof = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Block until the remote command has finished and return its exit status,
+     * -1 if the channel was closed without one.
+     */
+    int waitForExitStatus(Channel channel, CommandWatch watch) throws InterruptedException, CommandTimeoutException {
+        synchronized (this) {
+            while (!eof && !channel.isClosed()) {
+                wait(CHECK_INTERVAL);
+                watch.check();
+            }
+        }
+        while (channel.getExitStatus() == -1 && !channel.isClosed()) {
+            Thread.sleep(EXIT_STATUS_INTERVAL);
+            watch.check();
+        }
+        return channel.getExitStatus();
+    }
+}
@@ -0,0 +1,145 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Sha256 checksums of local files, in the hex format printed by sha256sum on
+ * the servers.
+ */
+public final class FileChecksum {
+
+    public static final String ALGORITHM = "SHA-256";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private FileChecksum() {
+    }
+
+    public static String sha256(File file) throws IOException {
+        return sha256(file, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the checksum of the first length bytes of the file
+     */
+    public static String sha256(File file, long length) throws IOException {
+        return toHex(digest(file, length).digest());
+    }
+
+    /**
+     * @return a digest fed with the first length bytes of the file, ready to
+     *         take the bytes that follow
+     */
+    public static MessageDigest digest(File file, long length) throws IOException {
+        MessageDigest digest = newDigest();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            long remaining = length;
+            while (remaining > 0) {
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                int len = channel.read(buffer);
+                if (len == -1) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+                remaining -= len;
+            }
+        } finally {
+            in.close();
+        }
+        return digest;
+    }
+
+    /**
+     * @return the checksum of the bytes the digest got so far, the digest
+     *         itself keeps going
+     */
+    public static String peek(MessageDigest digest) {
+        try {
+            return toHex(((MessageDigest) digest.clone()).digest());
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(ALGORITHM + " digest can't be cloned", e);
+        }
+    }
+
+    /**
+     * Compute the checksums of many files with one thread per processor.
+     *
+     * @param files paths relative to the base folder
+     * @return checksum by relative path
+     */
+    public static Map<String, String> sha256(final File baseDir, List<String> files)
+            throws IOException, InterruptedException {
+        int threads = Math.max(1, Math.min(files.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GSSH checksum");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            Map<String, Future<String>> futures = new LinkedHashMap<String, Future<String>>();
+            for (final String file : files) {
+                futures.put(file, executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return sha256(new File(baseDir, file));
+                    }
+                }));
+            }
+            Map<String, String> checksums = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, Future<String>> entry : futures.entrySet()) {
+                try {
+                    checksums.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("checksum of " + entry.getKey() + " failed", e.getCause());
+                }
+            }
+            return checksums;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported by this jvm", e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
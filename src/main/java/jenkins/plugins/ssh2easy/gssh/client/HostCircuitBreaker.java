@@ -0,0 +1,119 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import jenkins.plugins.ssh2easy.gssh.GsshPluginException;
+
+/**
+ * Fails connects to a host right away for a cooldown period once connecting
+ * to it failed several times in a row, instead of letting every step of
+ * every build wait for its own connect timeout.
+ *
+ * After the cooldown a single connect is let through, the breaker closes
+ * when it succeeds and opens for another cooldown when it fails. The state
+ * is kept per address and port for all builds of this Jenkins.
+ */
+public final class HostCircuitBreaker {
+
+    private static final ConcurrentMap<String, State> HOSTS = new ConcurrentHashMap<String, State>();
+
+    private HostCircuitBreaker() {
+    }
+
+    static String key(String ip, int port) {
+        return ip + ":" + port;
+    }
+
+    /**
+     * @throws GsshPluginException if connects to the host fail fast right now
+     */
+    static void check(String host) {
+        check(host, System.currentTimeMillis());
+    }
+
+    static void check(String host, long now) {
+        State state = HOSTS.get(host);
+        if (state != null && !state.allow(now)) {
+            throw new GsshPluginException("connects to " + host + " fail fast after " + state.getFailures()
+                    + " failures in a row , next try in " + state.remaining(now) / 1000 + " s");
+        }
+    }
+
+    static void succeeded(String host) {
+        HOSTS.remove(host);
+    }
+
+    /**
+     * @param threshold failures in a row that open the breaker, 0 to never
+     *        open it
+     * @param cooldown seconds the breaker stays open
+     */
+    static void failed(String host, int threshold, int cooldown) {
+        failed(host, threshold, cooldown, System.currentTimeMillis());
+    }
+
+    static void failed(String host, int threshold, int cooldown, long now) {
+        if (threshold <= 0) {
+            return;
+        }
+        State state = HOSTS.get(host);
+        if (state == null) {
+            State created = new State();
+            state = HOSTS.putIfAbsent(host, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        state.failed(now, threshold, cooldown * 1000L);
+    }
+
+    /**
+     * @return true if connects to the address and port currently fail fast
+     */
+    public static boolean isOpen(String ip, int port) {
+        return isOpenAt(key(ip, port), System.currentTimeMillis());
+    }
+
+    static boolean isOpenAt(String host, long now) {
+        State state = HOSTS.get(host);
+        return state != null && state.remaining(now) > 0;
+    }
+
+    public static void reset() {
+        HOSTS.clear();
+    }
+
+    private static class State {
+
+        private int failures;
+        private long openUntil;
+        private long cooldown;
+
+        synchronized boolean allow(long now) {
+            if (now < openUntil) {
+                return false;
+            }
+            if (openUntil > 0) {
+                // half open, the next cooldown starts now unless this try succeeds
+                openUntil = now + cooldown;
+            }
+            return true;
+        }
+
+        synchronized void failed(long now, int threshold, long cooldown) {
+            failures++;
+            this.cooldown = cooldown;
+            if (failures >= threshold) {
+                openUntil = now + cooldown;
+            }
+        }
+
+        synchronized int getFailures() {
+            return failures;
+        }
+
+        synchronized long remaining(long now) {
+            return Math.max(0, openUntil - now);
+        }
+    }
+}
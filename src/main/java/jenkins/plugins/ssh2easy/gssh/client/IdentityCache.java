@@ -0,0 +1,189 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+
+/**
+ * Private keys of the server groups, read and decrypted once and shared by
+ * every connection of both ssh clients.
+ *
+ * Entries are keyed by key path and a hash of the passphrase, and are read
+ * again when the modification time or size of the key file changes.
+ */
+public final class IdentityCache {
+
+    private static final ConcurrentMap<String, CachedKey> KEYS = new ConcurrentHashMap<String, CachedKey>();
+
+    private IdentityCache() {
+    }
+
+    /**
+     * @return the decrypted key at the path as a jsch identity, to be added
+     *         with {@link JSch#addIdentity(Identity, byte[])}
+     */
+    public static Identity jschIdentity(String path, String passphrase) throws JSchException {
+        File file = new File(path);
+        String key = "jsch\0" + file.getAbsolutePath() + "\0" + hash(passphrase);
+        CachedKey cached = KEYS.get(key);
+        if (cached == null || !cached.isCurrent(file)) {
+            cached = new CachedKey(file, loadIdentity(file, passphrase));
+            KEYS.put(key, cached);
+        }
+        return (Identity) cached.material;
+    }
+
+    /**
+     * @return the content of the key file at the path, for trilead which
+     *         takes keys in PEM format
+     */
+    public static char[] pem(String path) throws IOException {
+        File file = new File(path);
+        String key = "pem\0" + file.getAbsolutePath();
+        CachedKey cached = KEYS.get(key);
+        if (cached == null || !cached.isCurrent(file)) {
+            cached = new CachedKey(file, readPem(file));
+            KEYS.put(key, cached);
+        }
+        return ((char[]) cached.material).clone();
+    }
+
+    public static void clear() {
+        KEYS.clear();
+    }
+
+    private static Identity loadIdentity(File file, String passphrase) throws JSchException {
+        KeyPair keyPair = KeyPair.load(new JSch(), file.getPath());
+        if (keyPair.isEncrypted()) {
+            if (passphrase == null || passphrase.isEmpty() || !keyPair.decrypt(passphrase)) {
+                throw new JSchException("can't decrypt private key " + file + " with the configured passphrase");
+            }
+        }
+        return new KeyPairIdentity(file.getPath(), keyPair);
+    }
+
+    private static char[] readPem(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "US-ASCII");
+        try {
+            StringBuilder pem = new StringBuilder((int) file.length());
+            char[] buffer = new char[4096];
+            int len;
+            while ((len = reader.read(buffer)) != -1) {
+                pem.append(buffer, 0, len);
+            }
+            char[] chars = new char[pem.length()];
+            pem.getChars(0, pem.length(), chars, 0);
+            return chars;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String hash(String passphrase) {
+        if (passphrase == null || passphrase.isEmpty()) {
+            return "";
+        }
+        MessageDigest digest = FileChecksum.newDigest();
+        try {
+            return FileChecksum.toHex(digest.digest(passphrase.getBytes("UTF-8")));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class CachedKey {
+
+        private final long lastModified;
+        private final long length;
+        private final Object material;
+
+        CachedKey(File file, Object material) {
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.material = material;
+        }
+
+        boolean isCurrent(File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+    /**
+     * An already decrypted key pair. It is shared by the sessions of all
+     * threads, so clearing it when one session is done is left out.
+     */
+    private static class KeyPairIdentity implements Identity {
+
+        private final String name;
+        private final KeyPair keyPair;
+        private final String algName;
+
+        KeyPairIdentity(String name, KeyPair keyPair) {
+            this.name = name;
+            this.keyPair = keyPair;
+            this.algName = algName(keyPair.getPublicKeyBlob());
+        }
+
+        /**
+         * The public key blob starts with the algorithm name as an ssh
+         * string, a 4 byte length and the name.
+         */
+        private static String algName(byte[] blob) {
+            int length = ((blob[0] & 0xff) << 24) | ((blob[1] & 0xff) << 16) | ((blob[2] & 0xff) << 8)
+                    | (blob[3] & 0xff);
+            try {
+                return new String(blob, 4, length, "US-ASCII");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean setPassphrase(byte[] passphrase) {
+            return true;
+        }
+
+        @Override
+        public byte[] getPublicKeyBlob() {
+            return keyPair.getPublicKeyBlob();
+        }
+
+        @Override
+        public byte[] getSignature(byte[] data) {
+            return keyPair.getSignature(data);
+        }
+
+        @Override
+        public boolean decrypt() {
+            return true;
+        }
+
+        @Override
+        public String getAlgName() {
+            return algName;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isEncrypted() {
+            return false;
+        }
+
+        @Override
+        public void clear() {
+        }
+    }
+}
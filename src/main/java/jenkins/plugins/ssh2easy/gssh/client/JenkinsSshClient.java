@@ -1,26 +1,62 @@
 package jenkins.plugins.ssh2easy.gssh.client;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
-import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import jenkins.plugins.ssh2easy.gssh.GsshPluginException;
 import jenkins.plugins.ssh2easy.gssh.ServerGroup;
 import org.apache.log4j.Logger;
 import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.InteractiveCallback;
 import com.trilead.ssh2.Session;
-import java.util.concurrent.ExecutionException;
+import jenkins.plugins.ssh2easy.gssh.client.CommandWatch.CommandTimeoutException;
 
 public class JenkinsSshClient extends DefaultSshClient {
 
     private static final Logger LOG = Logger.getLogger(JenkinsSshClient.class);
 
+    /**
+     * Milliseconds to wait for the kill command sent on a timeout or abort.
+     */
+    private static final long SIGNAL_TIMEOUT = 5000;
+
+    private static final SshConnectionPool<Connection> CONNECTION_POOL = new SshConnectionPool<Connection>("trilead");
+
+    private final SshConnectionPool.ConnectionFactory<Connection> connectionFactory = new SshConnectionPool.ConnectionFactory<Connection>() {
+        @Override
+        public Connection create(PrintStream logger) throws Exception {
+            return connect(logger, new Callable<Connection>() {
+                @Override
+                public Connection call() throws IOException {
+                    return getConnection();
+                }
+            });
+        }
+
+        @Override
+        public boolean validate(Connection connection) {
+            try {
+                connection.sendIgnorePacket();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void destroy(Connection connection) {
+            connection.close();
+        }
+    };
+
     public JenkinsSshClient(String ip, int port, String username, String password, String privatekey) {
         super(ip, port, username, password, privatekey);
     }
@@ -39,47 +75,223 @@ public class JenkinsSshClient extends DefaultSshClient {
 
     public Connection getConnection() throws IOException {
         Connection conn = new Connection(this.getIp(), this.getPort());
-        conn.connect();
-        boolean isAuthenticated;
-        String mode;
+        applyTransport(conn);
+        conn.connect(null, CONNECT_TIMEOUT, CONNECT_TIMEOUT);
+        String method = login(conn);
+        if (getServerGroup().getKeepAliveInterval() > 0) {
+            TrileadKeepAlive.start(conn, getServerGroup().getKeepAliveInterval(),
+                    getServerGroup().getKeepAliveCountMax());
+        }
+        LOG.info("Create ssh session success with " + getUsername() + "@" + getIp() + " to port: " + getPort()
+                + " mode: " + method);
+        return conn;
+    }
+
+    /**
+     * Open a new connection outside of the pool, log in and close it again,
+     * timing the connect with the key exchange and the login apart.
+     */
+    @Override
+    public ServerHealth checkHealth(PrintStream logger, int timeout) {
+        long start = System.currentTimeMillis();
+        Connection conn = new Connection(this.getIp(), this.getPort());
+        try {
+            applyTransport(conn);
+            conn.connect(null, timeout, timeout);
+            long connected = System.currentTimeMillis();
+            login(conn);
+            HostCircuitBreaker.succeeded(HostCircuitBreaker.key(getIp(), getPort()));
+            return ServerHealth.healthy(connected - start, System.currentTimeMillis() - connected);
+        } catch (IOException e) {
+            return ServerHealth.failed(System.currentTimeMillis() - start, e);
+        } finally {
+            conn.close();
+        }
+    }
 
+    /**
+     * @return the method that logged in
+     * @throws IOException if the server rejected every method, the
+     *         connection is closed then
+     */
+    private String login(Connection conn) throws IOException {
+        List<String> methods = new ArrayList<String>();
         if (!this.getPrivatekey().isEmpty()) {
-            mode = "authenticateWithPublicKey";
-            File fileKey = new File(this.getPrivatekey());
-            isAuthenticated = conn.authenticateWithPublicKey(this.getUsername(), fileKey, this.getPassword());
+            methods.add(AuthMethodCache.PUBLICKEY);
         } else if (this.getPassword().isEmpty()) {
-            mode = "authenticateWithNone";
-            isAuthenticated = conn.authenticateWithNone(this.getUsername());
+            methods.add(AuthMethodCache.NONE);
+            methods.add(AuthMethodCache.PASSWORD);
         } else {
-            mode = "authenticateWithPassword";
-            isAuthenticated = conn.authenticateWithPassword(this.getUsername(), this.getPassword());
+            methods.add(AuthMethodCache.PASSWORD);
+            methods.add(AuthMethodCache.KEYBOARD_INTERACTIVE);
         }
 
-        if (!isAuthenticated) {
-            throw new IOException("Authentication failed.");
+        // trilead keeps the connection open after a rejected method, so the
+        // next method is tried without connecting again
+        String host = AuthMethodCache.key(getUsername(), getIp(), getPort(), getPrivatekey());
+        for (String method : AuthMethodCache.order(host, methods)) {
+            if (authenticate(conn, method)) {
+                AuthMethodCache.succeeded(host, method);
+                return method;
+            }
+            AuthMethodCache.failed(host, method);
         }
-        LOG.info("Create ssh session success with " + getUsername() + "@" + getIp() + " to port: " + getPort() + " mode: " + mode);
-        return conn;
+        conn.close();
+        throw new IOException("Authentication failed.");
     }
 
-    @Override
-    public int executeCommand(PrintStream logger, String command) {
-        Connection conn = null;
+    private boolean authenticate(Connection conn, String method) throws IOException {
+        if (AuthMethodCache.PUBLICKEY.equals(method)) {
+            char[] pem = IdentityCache.pem(this.getPrivatekey());
+            return conn.authenticateWithPublicKey(this.getUsername(), pem, this.getPassword());
+        } else if (AuthMethodCache.NONE.equals(method)) {
+            return conn.authenticateWithNone(this.getUsername());
+        } else if (AuthMethodCache.PASSWORD.equals(method)) {
+            return conn.isAuthMethodAvailable(this.getUsername(), method)
+                    && conn.authenticateWithPassword(this.getUsername(), this.getPassword());
+        } else {
+            return conn.isAuthMethodAvailable(this.getUsername(), method)
+                    && conn.authenticateWithKeyboardInteractive(this.getUsername(), new InteractiveCallback() {
+                        @Override
+                        public String[] replyToChallenge(String name, String instruction, int numPrompts,
+                                String[] prompt, boolean[] echo) {
+                            String[] replies = new String[numPrompts];
+                            Arrays.fill(replies, getPassword());
+                            return replies;
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Apply the tcp and algorithm settings of the server group that trilead
+     * supports. Trilead has no compression, no choice of key exchange and no
+     * access to the socket buffers, those settings only apply to jsch.
+     */
+    protected void applyTransport(Connection conn) throws IOException {
+        ServerGroup group = getServerGroup();
+        conn.setTCPNoDelay(group.isTcpNoDelay());
+        String[] ciphers = supported(group.getCiphers(), Connection.getAvailableCiphers());
+        if (ciphers.length > 0) {
+            conn.setClient2ServerCiphers(ciphers);
+            conn.setServer2ClientCiphers(ciphers);
+        }
+        String[] macs = supported(group.getMacs(), Connection.getAvailableMACs());
+        if (macs.length > 0) {
+            conn.setClient2ServerMACs(macs);
+            conn.setServer2ClientMACs(macs);
+        }
+    }
+
+    private static String[] supported(String algorithms, String[] available) {
+        List<String> supported = splitAlgorithms(algorithms);
+        for (String algorithm : supported) {
+            if (!Arrays.asList(available).contains(algorithm)) {
+                LOG.warn(algorithm + " is not supported by trilead , skip it");
+            }
+        }
+        supported.retainAll(Arrays.asList(available));
+        return supported.toArray(new String[supported.size()]);
+    }
+
+    /**
+     * Lease an authenticated connection from the shared pool, give it back
+     * with {@link #releaseConnection(Connection, boolean)}.
+     */
+    public Connection borrowConnection(PrintStream logger) {
+        return CONNECTION_POOL.borrow(getPoolKey(), logger, connectionFactory,
+                getServerGroup().getMaxSessionsPerHost(), getServerGroup().getMaxChannelsPerSession(),
+                getServerGroup().getIdleTimeout());
+    }
+
+    private Connection leaseConnection(PrintStream logger) {
         try {
-            conn = getConnection();
+            return borrowConnection(logger);
         } catch (Exception e) {
             logger.println("Create ssh session failed with " + getUsername() + "@" + getIp() + " to port: " + getPort());
             e.printStackTrace(logger);
             throw new GsshPluginException(e);
         }
+    }
+
+    /**
+     * Open a session channel on a leased connection. When the server refuses
+     * another channel on a connection that is shared with other steps, the
+     * lease is given back and null is returned so the caller borrows again.
+     */
+    protected Session openSession(Connection conn) throws IOException {
+        try {
+            return conn.openSession();
+        } catch (IOException e) {
+            if (CONNECTION_POOL.channelRefused(getPoolKey(), conn)) {
+                releaseConnection(conn, false);
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    public void releaseConnection(Connection conn, boolean broken) {
+        if (conn == null) {
+            return;
+        }
+        if (broken) {
+            CONNECTION_POOL.invalidate(getPoolKey(), conn);
+        } else {
+            CONNECTION_POOL.release(getPoolKey(), conn);
+        }
+    }
+
+    public static SshConnectionPool<Connection> getConnectionPool() {
+        return CONNECTION_POOL;
+    }
+
+    /**
+     * Pipe the command into the user's shell over an exec channel without a
+     * pty, stdout and stderr are copied separately and nothing is echoed.
+     * Server groups set to pty shell get the old interactive shell.
+     */
+    @Override
+    public int executeCommand(PrintStream logger, String command) {
+        if (getServerGroup().isPtyShell()) {
+            return executeInPtyShell(logger, command);
+        }
+        final byte[] script;
+        try {
+            script = (wrapperInput(command) + "\n").getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new GsshPluginException(e);
+        }
+        int status = executeCommand(logger, STREAM_SHELL, new StdinSource() {
+            @Override
+            public void writeTo(OutputStream stdin) throws IOException {
+                stdin.write(script);
+            }
+        }, logger, newCommandWatch());
+        logger.println("####################################");
+        logger.println("execute command exit status --> " + status);
+        return status;
+    }
+
+    private int executeInPtyShell(PrintStream logger, String command) {
+        Connection conn = null;
         Session session = null;
+        SessionOutputPump.Pumping pumping = null;
+        boolean broken = false;
         String wrappedCommand = wrapperInput(command);
+        CommandWatch watch = newCommandWatch();
         try {
-            session = conn.openSession();
+            while (true) {
+                conn = leaseConnection(logger);
+                session = openSession(conn);
+                if (session != null) {
+                    break;
+                }
+                conn = null;
+            }
             session.requestPTY("dumb");
             session.startShell();
-            ExecutorService exec = Executors.newSingleThreadExecutor();
-            Future<Boolean> task = exec.submit(new OutputTask(session, logger));
+            pumping = SessionOutputPump.getInstance().register(session, watch.watch(logger), watch.watch(logger));
             PrintWriter out = new PrintWriter(session.getStdin());
             String commands[] = wrappedCommand.split("\n");
          
@@ -91,94 +303,128 @@ public class JenkinsSshClient extends DefaultSshClient {
             }
                    
             out.close();
-            task.get();
-            exec.shutdown();
+            pumping.await(watch);
+            logger.println("####################################");
             int status = session.getExitStatus();
             logger.println("execute command exit status --> " + status);
             return status;
-        } catch (IOException e) {
+        } catch (CommandTimeoutException e) {
             String msg = "execute commds=[" + wrappedCommand + "]failed !";
-            logger.println(msg);
-            e.printStackTrace(logger);
+            logger.println(msg + " " + e.getMessage());
             throw new GsshPluginException(msg, e);
-        } catch (InterruptedException e) {
+        } catch (IOException e) {
+            broken = true;
             String msg = "execute commds=[" + wrappedCommand + "]failed !";
             logger.println(msg);
             e.printStackTrace(logger);
             throw new GsshPluginException(msg, e);
-        } catch (ExecutionException e) {
+        } catch (InterruptedException e) {
+            broken = true;
             String msg = "execute commds=[" + wrappedCommand + "]failed !";
             logger.println(msg);
             e.printStackTrace(logger);
             throw new GsshPluginException(msg, e);
         } finally {
+            if (null != pumping) {
+                pumping.cancel();
+            }
             if (null != session) {
                 session.close();
             }
-            if (null != conn) {
-                conn.close();
-            }
+            releaseConnection(conn, broken);
         }
     }
 
-    class OutputTask implements Callable<Boolean> {
-
-        public boolean execute() throws IOException, InterruptedException {
-            InputStream stdout = session.getStdout();
-            InputStream stderr = session.getStderr();
-            byte[] buffer = new byte[8192];
-            boolean result = true;
+    /**
+     * Trilead can't send signals over the channel. With a timeout signal set
+     * on the server group the command records the pid of its shell, which
+     * sshd made a process group leader, and the whole group is signaled by
+     * kill over a second channel.
+     */
+    @Override
+    int executeCommand(PrintStream logger, String command, StdinSource stdin, OutputStream stdout,
+            CommandWatch watch) {
+        Connection conn = null;
+        Session session = null;
+        SessionOutputPump.Pumping pumping = null;
+        boolean broken = false;
+        String pidFile = null;
+        if (!getServerGroup().getTimeoutSignal().isEmpty()) {
+            pidFile = "/tmp/.gssh-" + UUID.randomUUID() + ".pid";
+            command = "echo $$ > " + pidFile + "; " + command + "\ns=$?; rm -f " + pidFile + "; exit $s";
+        }
+        try {
             while (true) {
-                if ((stdout.available() == 0) && (stderr.available() == 0)) {
-                    int conditions = session.waitForCondition(
-                            ChannelCondition.STDERR_DATA
-                            | ChannelCondition.STDOUT_DATA
-                            | ChannelCondition.EXIT_STATUS, 0);
-                    if ((conditions & ChannelCondition.TIMEOUT) != 0) {
-                        logger.println("wait timeout and exit now !");
-                        break;
-                    }
-                    if ((conditions & ChannelCondition.EXIT_STATUS) != 0) {
-                        break;
-                    }
-                }
-
-                while (stdout.available() > 0) {
-                    int len = stdout.read(buffer);
-                    if (len > 0) {
-                        logger.write(buffer, 0, len);
-                    }
-                }
-
-                while (stderr.available() > 0) {
-                    int len = stderr.read(buffer);
-                    if (len > 0) {
-                        logger.write(buffer, 0, len);
-                    }
-                    result = false;
-                }
-                if (!result) {
+                conn = leaseConnection(logger);
+                session = openSession(conn);
+                if (session != null) {
                     break;
                 }
+                conn = null;
             }
-
-            logger.println("####################################");
-            return result;
+            session.execCommand(command);
+            pumping = SessionOutputPump.getInstance().register(session, watch.watch(stdout), watch.watch(logger),
+                    stdout instanceof SessionOutputPump.BlockingStream);
+            if (stdin != null) {
+                OutputStream in = watch.watchInput(session.getStdin());
+                try {
+                    stdin.writeTo(in);
+                } finally {
+                    in.close();
+                }
+            }
+            pumping.await(watch);
+            Integer status = session.getExitStatus();
+            return status == null ? STATUS_FAILED : status;
+        } catch (CommandTimeoutException e) {
+            // only this channel is closed, the connection may serve other steps
+            logger.println("[GSSH]-cmd Exception:" + e.getMessage());
+            signal(logger, conn, pidFile);
+            throw new GsshPluginException(e);
+        } catch (IOException e) {
+            // a failed local target leaves the connection usable
+            broken = !(e instanceof SessionOutputPump.LocalOutputException);
+            logger.println("[GSSH]-cmd Exception:" + e.getMessage());
+            e.printStackTrace(logger);
+            throw new GsshPluginException(e);
+        } catch (InterruptedException e) {
+            broken = true;
+            logger.println("[GSSH]-cmd Exception: aborted");
+            signal(logger, conn, pidFile);
+            throw new GsshPluginException(e);
+        } finally {
+            if (null != pumping) {
+                pumping.cancel();
+            }
+            if (null != session) {
+                session.close();
+            }
+            releaseConnection(conn, broken);
         }
+    }
 
-        @Override
-        public Boolean call() throws Exception {
-            Thread.sleep(2000);
-            return execute();
+    private void signal(PrintStream logger, Connection conn, String pidFile) {
+        if (conn == null || pidFile == null) {
+            return;
         }
-
-        private final PrintStream logger;
-        private final Session session;
-
-        public OutputTask(Session session, PrintStream logger) {
-            super();
-            this.session = session;
-            this.logger = logger;
+        String signal = getServerGroup().getTimeoutSignal();
+        if (!ServerGroup.isValidSignal(signal)) {
+            // the name goes into a shell command line
+            return;
+        }
+        Session kill = null;
+        try {
+            kill = conn.openSession();
+            kill.execCommand("test -f " + pidFile + " && kill -" + signal + " -- -$(cat " + pidFile + "); rm -f "
+                    + pidFile);
+            kill.waitForCondition(ChannelCondition.EXIT_STATUS | ChannelCondition.CLOSED, SIGNAL_TIMEOUT);
+            logger.println("sent SIG" + signal + " to the remote command");
+        } catch (IOException e) {
+            logger.println("sending SIG" + signal + " to the remote command failed: " + e.getMessage());
+        } finally {
+            if (kill != null) {
+                kill.close();
+            }
         }
     }
 }
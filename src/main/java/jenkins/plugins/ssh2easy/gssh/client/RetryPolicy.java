@@ -0,0 +1,62 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * How often and after which delay a failed connect or transfer is tried
+ * again. Delays grow exponentially from the base delay up to
+ * {@link #MAX_DELAY}, each one a random value between half that bound and the
+ * bound, so builds failing on the same host at the same time don't retry in
+ * lockstep.
+ */
+final class RetryPolicy {
+
+    static final long MAX_DELAY = 30 * 1000;
+
+    private static final Random RANDOM = new Random();
+
+    private final int retries;
+    private final long baseDelay;
+
+    /**
+     * @param retries how many times a failed attempt is repeated, 0 for none
+     * @param baseDelay milliseconds before the first retry
+     */
+    RetryPolicy(int retries, long baseDelay) {
+        this.retries = Math.max(0, retries);
+        this.baseDelay = Math.max(1, baseDelay);
+    }
+
+    /**
+     * @param attempt 0 for the first attempt
+     * @return true if the attempt that just failed may be repeated
+     */
+    boolean canRetry(int attempt) {
+        return attempt < retries;
+    }
+
+    /**
+     * @return milliseconds to wait after the failed attempt
+     */
+    long delay(int attempt) {
+        long bound = baseDelay << Math.min(attempt, 20);
+        if (bound <= 0 || bound > MAX_DELAY) {
+            bound = MAX_DELAY;
+        }
+        synchronized (RANDOM) {
+            return bound / 2 + (long) (RANDOM.nextDouble() * (bound / 2));
+        }
+    }
+
+    /**
+     * Wait before the next attempt, interrupts of an aborted build end the
+     * wait.
+     */
+    void pause(PrintStream logger, int attempt, Exception cause) throws InterruptedException {
+        long delay = delay(attempt);
+        logger.println("[GSSH] " + cause.getMessage() + " , retry " + (attempt + 1) + " of " + retries + " in "
+                + delay + " ms");
+        Thread.sleep(delay);
+    }
+}
@@ -0,0 +1,77 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Result of one health check of a server: whether a new ssh connection could
+ * be opened and logged in, and how long connecting and logging in took.
+ */
+public final class ServerHealth {
+
+    private final boolean healthy;
+    private final long connectMillis;
+    private final long authMillis;
+    private final String error;
+    private final long checkedAt;
+
+    private ServerHealth(boolean healthy, long connectMillis, long authMillis, String error) {
+        this.healthy = healthy;
+        this.connectMillis = connectMillis;
+        this.authMillis = authMillis;
+        this.error = error;
+        this.checkedAt = System.currentTimeMillis();
+    }
+
+    static ServerHealth healthy(long connectMillis, long authMillis) {
+        return new ServerHealth(true, connectMillis, authMillis, null);
+    }
+
+    static ServerHealth failed(long millis, Throwable error) {
+        String message = error.getMessage() == null ? error.getClass().getSimpleName() : error.getMessage();
+        return new ServerHealth(false, millis, -1, message);
+    }
+
+    /**
+     * @return a failed check that didn't finish within the milliseconds
+     */
+    public static ServerHealth timedOut(long millis) {
+        return new ServerHealth(false, millis, -1, "no answer within " + millis + " ms");
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @return milliseconds of the tcp connect and the key exchange, or until
+     *         the check failed
+     */
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    /**
+     * @return milliseconds of the login, -1 if the check failed
+     */
+    public long getAuthMillis() {
+        return authMillis;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getCheckedAt() {
+        return checkedAt;
+    }
+
+    @Override
+    public String toString() {
+        String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(checkedAt));
+        if (healthy) {
+            return "healthy , connect " + connectMillis + " ms , auth " + authMillis + " ms , checked " + time;
+        }
+        return "unhealthy after " + connectMillis + " ms : " + error + " , checked " + time;
+    }
+}
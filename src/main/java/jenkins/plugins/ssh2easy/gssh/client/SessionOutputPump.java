@@ -0,0 +1,355 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Session;
+import jenkins.plugins.ssh2easy.gssh.client.CommandWatch.CommandTimeoutException;
+
+/**
+ * Copies stdout and stderr of all running trilead sessions to their build
+ * logs with a small fixed set of threads, so the number of threads does not
+ * grow with the number of commands in flight.
+ *
+ * Every pump thread serves many sessions: it drains whatever data is
+ * buffered, completes the sessions that got their exit status and, when no
+ * session had any data, waits on one of them in turn via
+ * {@link Session#waitForCondition(int, long)} for at most {@link #IDLE_WAIT}
+ * milliseconds. This is bounded polling on purpose: trilead can only block on
+ * the conditions of a single session, so the thread has to come back to look
+ * at the others and at newly registered sessions.
+ *
+ * Stdout streams marked as {@link BlockingStream} are the exception, their
+ * session gets a thread of its own for stdout so a slow reader holds up only
+ * its own channel.
+ */
+class SessionOutputPump {
+
+    private static final Logger LOGGER = Logger.getLogger(SessionOutputPump.class.getName());
+
+    static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * Milliseconds a pump thread waits on one idle session before it looks at
+     * the next, set with the system property
+     * jenkins.plugins.ssh2easy.gssh.client.SessionOutputPump.idleWait. Longer
+     * waits cost less cpu while commands are quiet, but may delay the output
+     * of the other sessions of the thread by as much. Trilead waits forever
+     * for 0, so it is at least 1.
+     */
+    static final long IDLE_WAIT = Math.max(1, Long.getLong(SessionOutputPump.class.getName() + ".idleWait", 10));
+
+    /**
+     * Upper bound between two checks of the command deadlines while waiting
+     * for the output of a session.
+     */
+    static final long CHECK_INTERVAL = 100;
+
+    private static final int WAIT_CONDITIONS = ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA
+            | ChannelCondition.EXIT_STATUS | ChannelCondition.EXIT_SIGNAL | ChannelCondition.CLOSED;
+
+    private static final SessionOutputPump INSTANCE = new SessionOutputPump();
+
+    private static final ExecutorService COPIERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "GSSH stdout copy");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Marks an output stream whose writes may block for a long time, like a
+     * pipe into a consumer that unpacks the data.
+     */
+    interface BlockingStream {
+    }
+
+    /**
+     * Writing the output to its local target failed, the session itself is
+     * fine.
+     */
+    static class LocalOutputException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        LocalOutputException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    private final Worker[] workers = new Worker[THREADS];
+
+    private SessionOutputPump() {
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+        }
+    }
+
+    static SessionOutputPump getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start copying the output of the session until the remote command exits
+     * or the channel is closed.
+     */
+    Pumping register(Session session, OutputStream stdout, OutputStream stderr) {
+        return register(session, stdout, stderr, stdout instanceof BlockingStream);
+    }
+
+    /**
+     * @param blockingStdout true to copy stdout with a thread of its own
+     */
+    Pumping register(Session session, OutputStream stdout, OutputStream stderr, boolean blockingStdout) {
+        final Pumping pumping = new Pumping(session, stdout, stderr, blockingStdout);
+        if (blockingStdout) {
+            COPIERS.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pumping.copyStdout();
+                }
+            });
+        }
+        Worker worker = workers[0];
+        for (Worker w : workers) {
+            if (w.size() < worker.size()) {
+                worker = w;
+            }
+        }
+        worker.add(pumping);
+        return pumping;
+    }
+
+    /**
+     * Output copying of one session.
+     */
+    static class Pumping {
+
+        private final Session session;
+        private final OutputStream stdout;
+        private final OutputStream stderr;
+        private final boolean blockingStdout;
+        private final CountDownLatch done;
+        private volatile boolean pumped;
+        private volatile boolean cancelled;
+        private volatile boolean stderrData;
+        private volatile IOException failure;
+
+        Pumping(Session session, OutputStream stdout, OutputStream stderr, boolean blockingStdout) {
+            this.session = session;
+            this.stdout = stdout;
+            this.stderr = stderr;
+            this.blockingStdout = blockingStdout;
+            this.done = new CountDownLatch(blockingStdout ? 2 : 1);
+        }
+
+        /**
+         * Block until all output of the session was copied, streams passed
+         * to {@link SessionOutputPump#register} through
+         * {@link CommandWatch#watch(OutputStream)} keep the watch informed.
+         *
+         * @return false if the command wrote anything to stderr
+         * @throws CommandTimeoutException if the watch expired first
+         */
+        boolean await(CommandWatch watch) throws IOException, InterruptedException {
+            while (!done.await(CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                watch.check();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return !stderrData;
+        }
+
+        /**
+         * @return true once the pump thread is finished with the session
+         */
+        boolean isDone() {
+            return pumped;
+        }
+
+        /**
+         * Stop copying, the session stays open.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        private boolean drain(byte[] buffer) throws IOException {
+            boolean copied = !blockingStdout && copy(session.getStdout(), stdout, buffer);
+            if (copy(session.getStderr(), stderr, buffer)) {
+                stderrData = true;
+                copied = true;
+            }
+            return copied;
+        }
+
+        private static boolean copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+            boolean copied = false;
+            while (in.available() > 0) {
+                int len = in.read(buffer);
+                if (len <= 0) {
+                    break;
+                }
+                write(out, buffer, len);
+                copied = true;
+            }
+            if (copied) {
+                flush(out);
+            }
+            return copied;
+        }
+
+        private boolean hasExited() {
+            return session.getExitStatus() != null || session.getExitSignal() != null;
+        }
+
+        /**
+         * Copy stdout until the remote side sends EOF, blocking on the
+         * session and on the target stream.
+         */
+        private void copyStdout() {
+            byte[] buffer = new byte[8192];
+            InputStream in = session.getStdout();
+            try {
+                int len;
+                while (!cancelled && (len = in.read(buffer)) >= 0) {
+                    write(stdout, buffer, len);
+                }
+                flush(stdout);
+            } catch (IOException e) {
+                if (!cancelled) {
+                    failure = e;
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private static void write(OutputStream out, byte[] buffer, int len) throws LocalOutputException {
+            try {
+                out.write(buffer, 0, len);
+            } catch (IOException e) {
+                throw new LocalOutputException(e);
+            }
+        }
+
+        private static void flush(OutputStream out) throws LocalOutputException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new LocalOutputException(e);
+            }
+        }
+
+        private void finish(IOException e) {
+            if (e != null) {
+                failure = e;
+            }
+            pumped = true;
+            done.countDown();
+        }
+    }
+
+    private static class Worker implements Runnable {
+
+        private final int index;
+        private final List<Pumping> sessions = new ArrayList<Pumping>();
+        private final byte[] buffer = new byte[8192];
+        private Thread thread;
+        private int next;
+
+        Worker(int index) {
+            this.index = index;
+        }
+
+        synchronized int size() {
+            return sessions.size();
+        }
+
+        synchronized void add(Pumping pumping) {
+            sessions.add(pumping);
+            if (thread == null) {
+                thread = new Thread(this, "GSSH output pump " + index);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            notifyAll();
+        }
+
+        private synchronized List<Pumping> snapshot() throws InterruptedException {
+            while (sessions.isEmpty()) {
+                wait();
+            }
+            return new ArrayList<Pumping>(sessions);
+        }
+
+        private synchronized void remove(Pumping pumping) {
+            sessions.remove(pumping);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    pump(snapshot());
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "ssh output pump failed", e);
+                }
+            }
+        }
+
+        private void pump(List<Pumping> active) {
+            boolean copied = false;
+            for (Pumping pumping : active) {
+                if (pumping.cancelled) {
+                    remove(pumping);
+                    pumping.finish(null);
+                    continue;
+                }
+                try {
+                    copied |= pumping.drain(buffer);
+                    if (pumping.hasExited()) {
+                        // exit status is sent after the last output, take what is left
+                        pumping.drain(buffer);
+                        remove(pumping);
+                        pumping.finish(null);
+                    }
+                } catch (IOException e) {
+                    remove(pumping);
+                    pumping.finish(e);
+                }
+            }
+            if (copied) {
+                return;
+            }
+            next = (next + 1) % active.size();
+            Pumping waitOn = active.get(next);
+            if (waitOn.isDone()) {
+                return;
+            }
+            // unread stdout of a blocking stream is no reason to wake up
+            int wanted = waitOn.blockingStdout ? WAIT_CONDITIONS & ~ChannelCondition.STDOUT_DATA : WAIT_CONDITIONS;
+            int conditions = waitOn.session.waitForCondition(wanted, IDLE_WAIT);
+            if ((conditions & ChannelCondition.CLOSED) != 0 && (conditions & ChannelCondition.STDERR_DATA) == 0
+                    && (waitOn.blockingStdout || (conditions & ChannelCondition.STDOUT_DATA) == 0)) {
+                remove(waitOn);
+                waitOn.finish(null);
+            }
+        }
+    }
+}
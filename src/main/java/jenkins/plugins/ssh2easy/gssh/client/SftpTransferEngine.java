@@ -0,0 +1,277 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Moves file content over an sftp channel with many requests in flight.
+ *
+ * Downloads keep {@link #getOutstandingRequests()} read requests outstanding
+ * so a high latency link is not idle while waiting for every single reply.
+ * Uploads hand the data to jsch in chunks of {@link #getBufferSize()}
+ * bytes, jsch splits them into write requests of its own packet size, sends
+ * them without waiting for their status and collects the acknowledgements as
+ * they come in. Local files are read and written through a
+ * {@link FileChannel} with a direct buffer, the buffer size only changes the
+ * local copying, not the size of the sftp requests on the wire.
+ */
+public class SftpTransferEngine {
+
+    public static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
+    public static final int DEFAULT_OUTSTANDING_REQUESTS = 16;
+
+    /**
+     * Files are only split into ranges of at least this size.
+     */
+    public static final long MIN_PART_SIZE = 8L * 1024 * 1024;
+
+    private final int bufferSize;
+    private final int outstandingRequests;
+
+    /**
+     * @param bufferSize bytes of the local buffers file content is copied
+     *        through
+     */
+    public SftpTransferEngine(int bufferSize, int outstandingRequests) {
+        this.bufferSize = bufferSize > 0 ? bufferSize : DEFAULT_BUFFER_SIZE;
+        this.outstandingRequests = outstandingRequests > 0 ? outstandingRequests : DEFAULT_OUTSTANDING_REQUESTS;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getOutstandingRequests() {
+        return outstandingRequests;
+    }
+
+    /**
+     * Upload a local file to the remote path, replacing an existing file.
+     */
+    public TransferStats upload(ChannelSftp sftp, File local, String remote) throws SftpException, IOException {
+        return upload(sftp, local, remote, 0, null);
+    }
+
+    /**
+     * Upload the local file from the offset on, appending to a remote file
+     * that already holds the bytes before the offset.
+     *
+     * @param digest updated with every uploaded byte, may be null
+     */
+    public TransferStats upload(ChannelSftp sftp, File local, String remote, long offset, MessageDigest digest)
+            throws SftpException, IOException {
+        long start = System.currentTimeMillis();
+        FileInputStream in = new FileInputStream(local);
+        try {
+            FileChannel channel = in.getChannel();
+            channel.position(offset);
+            OutputStream out = sftp.put(remote, null, offset > 0 ? ChannelSftp.RESUME : ChannelSftp.OVERWRITE, 0);
+            try {
+                long bytes = copy(channel, out, digest);
+                return new TransferStats(bytes, System.currentTimeMillis() - start);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Upload the stream content to the remote path, replacing an existing
+     * file.
+     */
+    public TransferStats upload(ChannelSftp sftp, InputStream in, String remote) throws SftpException, IOException {
+        long start = System.currentTimeMillis();
+        OutputStream out = sftp.put(remote, ChannelSftp.OVERWRITE);
+        try {
+            byte[] buffer = new byte[bufferSize];
+            long bytes = 0;
+            int len;
+            while (-1 != (len = in.read(buffer))) {
+                out.write(buffer, 0, len);
+                bytes += len;
+            }
+            return new TransferStats(bytes, System.currentTimeMillis() - start);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Download the remote file to a local file, replacing an existing file.
+     */
+    public TransferStats download(ChannelSftp sftp, String remote, File local) throws SftpException, IOException {
+        return download(sftp, remote, local, 0, null);
+    }
+
+    /**
+     * Download the remote file from the offset on, appending to a local file
+     * that already holds the bytes before the offset.
+     *
+     * @param digest updated with every downloaded byte, may be null
+     */
+    public TransferStats download(ChannelSftp sftp, String remote, File local, long offset, MessageDigest digest)
+            throws SftpException, IOException {
+        long start = System.currentTimeMillis();
+        setBulkRequests(sftp);
+        InputStream in = sftp.get(remote, null, offset);
+        try {
+            FileOutputStream out = new FileOutputStream(local, offset > 0);
+            try {
+                FileChannel channel = out.getChannel();
+                channel.truncate(offset);
+                long bytes = copy(in, channel, digest);
+                return new TransferStats(bytes, System.currentTimeMillis() - start);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Download a byte range of the remote file into the same range of the
+     * local file with positional writes, so several ranges can be written
+     * into one file at the same time.
+     */
+    public long downloadRange(ChannelSftp sftp, String remote, FileChannel local, long offset, long length)
+            throws SftpException, IOException {
+        setBulkRequests(sftp);
+        InputStream in = sftp.get(remote, null, offset);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize * outstandingRequests);
+            byte[] chunk = new byte[bufferSize];
+            long position = offset;
+            long remaining = length;
+            while (remaining > 0) {
+                int len = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (len == -1) {
+                    throw new EOFException("remote file " + remote + " ended at " + (offset + length - remaining)
+                            + " , expected " + (offset + length) + " bytes");
+                }
+                if (buffer.remaining() < len) {
+                    position += flush(buffer, local, position);
+                }
+                buffer.put(chunk, 0, len);
+                remaining -= len;
+            }
+            flush(buffer, local, position);
+            return length;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Let jsch keep as many read requests outstanding as configured.
+     */
+    void setBulkRequests(ChannelSftp sftp) throws IOException {
+        try {
+            sftp.setBulkRequests(outstandingRequests);
+        } catch (JSchException e) {
+            throw new IOException("set sftp bulk requests failed", e);
+        }
+    }
+
+    long copy(FileChannel in, OutputStream out, MessageDigest digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        byte[] chunk = new byte[bufferSize];
+        long bytes = 0;
+        while (in.read(buffer) != -1) {
+            buffer.flip();
+            int len = buffer.remaining();
+            buffer.get(chunk, 0, len);
+            out.write(chunk, 0, len);
+            if (digest != null) {
+                digest.update(chunk, 0, len);
+            }
+            bytes += len;
+            buffer.clear();
+        }
+        return bytes;
+    }
+
+    long copy(InputStream in, FileChannel out, MessageDigest digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize * outstandingRequests);
+        byte[] chunk = new byte[bufferSize];
+        long bytes = 0;
+        int len;
+        while (-1 != (len = in.read(chunk))) {
+            if (buffer.remaining() < len) {
+                bytes += flush(buffer, out);
+            }
+            buffer.put(chunk, 0, len);
+            if (digest != null) {
+                digest.update(chunk, 0, len);
+            }
+        }
+        bytes += flush(buffer, out);
+        return bytes;
+    }
+
+    private static long flush(ByteBuffer buffer, FileChannel out) throws IOException {
+        buffer.flip();
+        long bytes = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+        return bytes;
+    }
+
+    private static long flush(ByteBuffer buffer, FileChannel out, long position) throws IOException {
+        buffer.flip();
+        long bytes = buffer.remaining();
+        long at = position;
+        while (buffer.hasRemaining()) {
+            at += out.write(buffer, at);
+        }
+        buffer.clear();
+        return bytes;
+    }
+
+    /**
+     * Size and duration of a finished transfer.
+     */
+    public static class TransferStats {
+
+        private final long bytes;
+        private final long millis;
+
+        public TransferStats(long bytes, long millis) {
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public double getMegabytesPerSecond() {
+            return millis == 0 ? 0 : (bytes / (1024.0 * 1024.0)) / (millis / 1000.0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f MB in %.1f s (%.1f MB/s)", bytes / (1024.0 * 1024.0), millis / 1000.0,
+                    getMegabytesPerSecond());
+        }
+    }
+}
@@ -3,6 +3,8 @@ package jenkins.plugins.ssh2easy.gssh.client;
 import java.io.File;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 public interface SshClient {
 
@@ -11,6 +13,16 @@ public interface SshClient {
 
     int executeCommand(PrintStream logger, String command);
 
+    /**
+     * Override the command timeouts of the server group for the commands
+     * run by this client.
+     *
+     * @param timeout seconds a command may run, 0 for the group's setting
+     * @param outputTimeout seconds a command may go without output, 0 for
+     *        the group's setting
+     */
+    void setCommandTimeouts(int timeout, int outputTimeout);
+
     int executeShell(PrintStream logger, String shell);
 
     int executeShellByFTP(PrintStream logger, String shell);
@@ -20,11 +32,75 @@ public interface SshClient {
     int uploadFile(PrintStream logger, String fileName, InputStream fileContent, String serverLocation);
 
     int uploadFile(PrintStream logger, String fileName, File file, String serverLocation);
+
+    /**
+     * Upload only the blocks of the file that differ from the remote file
+     * of the same name, the whole file if there is no remote file yet.
+     */
+    int uploadFileDelta(PrintStream logger, String fileName, File file, String serverLocation);
+
+    /**
+     * @return true if the remote file has the sha256 checksum of the local
+     *         file
+     */
+    boolean isUnchanged(PrintStream logger, File file, String remoteFile);
+
+    /**
+     * Compare the sha256 checksums of the local files with the remote files
+     * of the same relative path. Local checksums are computed in parallel,
+     * the remote ones with one sha256sum command.
+     *
+     * @param files paths relative to the base folder
+     * @return the files that are missing on the server or differ
+     */
+    List<String> changedFiles(PrintStream logger, File baseDir, List<String> files, String serverLocation);
     
     int downloadFile(PrintStream logger, String remoteFile, String localFolder, String fileName);
 
     int downloadFile(PrintStream logger, String remoteFile, String localFolder);
 
+    /**
+     * Download a large file as byte ranges over several channels at the same
+     * time into a preallocated local file, then verify its size and sha256
+     * checksum against the remote file.
+     *
+     * @param parts how many ranges are downloaded at the same time
+     */
+    int downloadFileInParts(PrintStream logger, String remoteFile, String localFolder, String fileName, int parts);
+
+    /**
+     * Upload many files below a local folder at the same time, keeping their
+     * relative paths. The remote folders are created in one pass first.
+     *
+     * @param files paths relative to the base folder
+     * @param parallelism how many sftp channels upload at the same time
+     */
+    int uploadFiles(PrintStream logger, File baseDir, List<String> files, String serverLocation, int parallelism);
+
+    /**
+     * Upload many files below a local folder as one gzip compressed tar
+     * stream, unpacked by tar on the server while it arrives.
+     *
+     * @param files paths relative to the base folder
+     */
+    int uploadFilesAsTar(PrintStream logger, File baseDir, List<String> files, String serverLocation);
+
+    /**
+     * Download the files of a remote folder, or the files matching a pattern
+     * like /var/log/app/*.log, at the same time into the local folder,
+     * keeping their paths relative to the folder before the first wildcard.
+     *
+     * @param parallelism how many sftp channels download at the same time
+     */
+    int downloadFiles(PrintStream logger, String remotePattern, String localFolder, int parallelism);
+
+    /**
+     * Download the files of a remote folder or pattern as one gzip
+     * compressed tar stream written by tar on the server and unpacked into
+     * the local folder while it arrives.
+     */
+    int downloadFilesAsTar(PrintStream logger, String remotePattern, String localFolder);
+
     int chmod(PrintStream logger, int mode, String path);
 
     int chown(PrintStream logger, String own, String path);
@@ -35,4 +111,20 @@ public interface SshClient {
 
     boolean testConnection(PrintStream logger);
 
+    /**
+     * Open and log in a new connection to the server, bypassing the pool.
+     *
+     * @param timeout milliseconds the connect may take
+     */
+    ServerHealth checkHealth(PrintStream logger, int timeout);
+
+    /**
+     * Run several operations against this server at the same time. Each
+     * operation opens its own channel, with more than one channel per session
+     * configured on the server group they share one pooled ssh connection.
+     *
+     * @return STATUS_SUCCESS or the status of the first failed operation
+     */
+    int executeParallel(PrintStream logger, List<Callable<Integer>> operations);
+
 }
@@ -0,0 +1,608 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.plugins.ssh2easy.gssh.GsshPluginException;
+
+/**
+ * Keeps authenticated ssh connections alive between build steps so repeated
+ * commands against the same host skip the tcp connect, key exchange and
+ * authentication.
+ *
+ * Connections are keyed by (group, ip, port, user). Every key has its own
+ * limit of concurrently leased connections, idle connections are evicted
+ * after the group idle timeout and every connection is validated before it
+ * is handed out again. A connection may be leased to several callers at the
+ * same time, each of them opening its own channel on the shared transport,
+ * up to the channels per connection limit of the group.
+ *
+ * @param <T> the transport type, jsch Session or trilead Connection
+ */
+public class SshConnectionPool<T> {
+
+    private static final Logger LOGGER = Logger.getLogger(SshConnectionPool.class.getName());
+
+    public static final int DEFAULT_MAX_PER_HOST = 4;
+    public static final int DEFAULT_IDLE_TIMEOUT = 300;
+    public static final int DEFAULT_MAX_CHANNELS = 1;
+    public static final long BORROW_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+    public static final long EVICTION_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    public static final long LEARNED_LIMIT_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "GSSH connection pool evictor");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Creates, checks and closes the pooled transports.
+     */
+    public interface ConnectionFactory<T> {
+
+        T create(PrintStream logger) throws Exception;
+
+        boolean validate(T connection);
+
+        void destroy(T connection);
+    }
+
+    private final String name;
+    private final ConcurrentMap<PoolKey, HostPool> hosts = new ConcurrentHashMap<PoolKey, HostPool>();
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong multiplexed = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+
+    public SshConnectionPool(String name) {
+        this.name = name;
+        EVICTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evictIdle();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "evict idle ssh connections failed", e);
+                }
+            }
+        }, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Lease a live connection for the key. With more than one channel per
+     * connection a connection that is already in use is shared as long as it
+     * has free channels, otherwise an idle connection is reused or a new one
+     * is created if the per host limit allows it. Blocks while the limit is
+     * reached.
+     */
+    public T borrow(PoolKey key, PrintStream logger, ConnectionFactory<T> factory, int maxPerHost,
+            int maxChannels, int idleTimeout) {
+        HostPool host = getHostPool(key);
+        host.configure(maxPerHost, maxChannels, idleTimeout);
+        long deadline = System.currentTimeMillis() + BORROW_TIMEOUT;
+        while (true) {
+            PooledEntry<T> entry = null;
+            PooledEntry<T> shared = null;
+            boolean timedOut = false;
+            boolean interrupted = false;
+            List<PooledEntry<T>> expired = new ArrayList<PooledEntry<T>>();
+            synchronized (host) {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    shared = host.findShareable();
+                    if (shared != null) {
+                        shared.leases++;
+                        multiplexed.incrementAndGet();
+                        break;
+                    }
+                    entry = host.idle.pollFirst();
+                    while (entry != null && entry.isExpired(now, host.idleTimeoutMillis)) {
+                        expired.add(entry);
+                        entry = host.idle.pollFirst();
+                    }
+                    if (entry != null || host.busy.size() + host.opening < host.maxPerHost) {
+                        host.opening++;
+                        break;
+                    }
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        timedOut = true;
+                        break;
+                    }
+                    waits.incrementAndGet();
+                    try {
+                        host.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        interrupted = true;
+                        break;
+                    }
+                }
+            }
+            destroyAll(expired);
+            if (interrupted) {
+                throw new GsshPluginException("interrupted while waiting for ssh connection to " + key);
+            }
+            if (timedOut) {
+                throw new GsshPluginException("no free ssh connection to " + key + " after waiting "
+                        + BORROW_TIMEOUT + " ms");
+            }
+            if (shared != null) {
+                return shared.connection;
+            }
+            if (entry == null) {
+                return open(host, logger, factory);
+            }
+            if (entry.factory.validate(entry.connection)) {
+                reused.incrementAndGet();
+                host.opened(entry);
+                return entry.connection;
+            }
+            validationFailures.incrementAndGet();
+            LOGGER.fine("pooled ssh connection to " + key + " is no longer alive, drop it");
+            destroy(entry);
+            host.openFailed();
+        }
+    }
+
+    private T open(HostPool host, PrintStream logger, ConnectionFactory<T> factory) {
+        T connection;
+        try {
+            connection = factory.create(logger);
+        } catch (GsshPluginException e) {
+            host.openFailed();
+            throw e;
+        } catch (Exception e) {
+            host.openFailed();
+            throw new GsshPluginException(e);
+        }
+        created.incrementAndGet();
+        host.opened(new PooledEntry<T>(connection, factory));
+        return connection;
+    }
+
+    /**
+     * Give a leased connection back to the pool, the connection becomes idle
+     * once all channels leased on it are given back.
+     */
+    public void release(PoolKey key, T connection) {
+        giveBack(key, connection, false);
+    }
+
+    /**
+     * Close a connection that failed while it was leased instead of handing
+     * it out again. Channels still leased on it are given the chance to
+     * finish, no further channel is opened on it.
+     */
+    public void invalidate(PoolKey key, T connection) {
+        giveBack(key, connection, true);
+    }
+
+    /**
+     * Record that the server refused to open another channel on a shared
+     * connection, usually because of its MaxSessions setting. Further leases
+     * of the host don't exceed the number of channels the server accepted
+     * until {@link #LEARNED_LIMIT_TIMEOUT} has passed. A connection that is
+     * no longer alive is not a refusal, it is shared no further and the
+     * caller's failure handling closes it.
+     *
+     * @return true if the connection was shared and the caller should give
+     *         its lease back and borrow again
+     */
+    public boolean channelRefused(PoolKey key, T connection) {
+        HostPool host = hosts.get(key);
+        if (host == null) {
+            return false;
+        }
+        ConnectionFactory<T> factory;
+        synchronized (host) {
+            PooledEntry<T> entry = host.find(connection);
+            if (entry == null || entry.leases <= 1) {
+                return false;
+            }
+            factory = entry.factory;
+        }
+        boolean alive = factory.validate(connection);
+        synchronized (host) {
+            PooledEntry<T> entry = host.find(connection);
+            if (entry == null) {
+                return false;
+            }
+            if (!alive) {
+                entry.broken = true;
+                return false;
+            }
+            if (entry.leases <= 1) {
+                return false;
+            }
+            int accepted = entry.leases - 1;
+            if (accepted < host.learnedMaxChannels) {
+                host.learnedMaxChannels = accepted;
+                LOGGER.info("ssh server " + key + " accepts only " + accepted
+                        + " channels per connection, lower the channel limit");
+            }
+            host.learnedAt = System.currentTimeMillis();
+            return true;
+        }
+    }
+
+    private void giveBack(PoolKey key, T connection, boolean broken) {
+        HostPool host = hosts.get(key);
+        if (host == null) {
+            return;
+        }
+        PooledEntry<T> closed = null;
+        synchronized (host) {
+            PooledEntry<T> entry = host.find(connection);
+            if (entry == null) {
+                return;
+            }
+            entry.broken |= broken;
+            entry.leases--;
+            if (entry.leases <= 0) {
+                host.busy.remove(entry);
+                if (entry.broken) {
+                    closed = entry;
+                } else {
+                    entry.lastUsed = System.currentTimeMillis();
+                    host.idle.addFirst(entry);
+                }
+            }
+            host.notifyAll();
+        }
+        if (closed != null) {
+            destroy(closed);
+        }
+    }
+
+    /**
+     * Close every idle connection that was not used within its idle timeout.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (HostPool host : hosts.values()) {
+            List<PooledEntry<T>> expired = new ArrayList<PooledEntry<T>>();
+            synchronized (host) {
+                Iterator<PooledEntry<T>> it = host.idle.iterator();
+                while (it.hasNext()) {
+                    PooledEntry<T> entry = it.next();
+                    if (entry.isExpired(now, host.idleTimeoutMillis)) {
+                        it.remove();
+                        expired.add(entry);
+                    }
+                }
+            }
+            for (PooledEntry<T> entry : expired) {
+                evicted.incrementAndGet();
+                destroy(entry);
+            }
+        }
+    }
+
+    /**
+     * Close every idle connection, leased connections are closed when they
+     * are given back.
+     */
+    public void clear() {
+        for (HostPool host : hosts.values()) {
+            List<PooledEntry<T>> idle;
+            synchronized (host) {
+                idle = new ArrayList<PooledEntry<T>>(host.idle);
+                host.idle.clear();
+            }
+            for (PooledEntry<T> entry : idle) {
+                destroy(entry);
+            }
+        }
+    }
+
+    public Statistics getStatistics() {
+        int leased = 0;
+        int channels = 0;
+        int idle = 0;
+        for (HostPool host : hosts.values()) {
+            synchronized (host) {
+                leased += host.busy.size();
+                for (PooledEntry<T> entry : host.busy) {
+                    channels += entry.leases;
+                }
+                idle += host.idle.size();
+            }
+        }
+        return new Statistics(name, hosts.size(), leased, channels, idle, created.get(), reused.get(),
+                multiplexed.get(), destroyed.get(), evicted.get(), validationFailures.get(), waits.get());
+    }
+
+    private void destroyAll(List<PooledEntry<T>> expired) {
+        for (PooledEntry<T> entry : expired) {
+            evicted.incrementAndGet();
+            destroy(entry);
+        }
+    }
+
+    private void destroy(PooledEntry<T> entry) {
+        destroyed.incrementAndGet();
+        try {
+            entry.factory.destroy(entry.connection);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "close pooled ssh connection failed", e);
+        }
+    }
+
+    private HostPool getHostPool(PoolKey key) {
+        HostPool host = hosts.get(key);
+        if (host == null) {
+            HostPool newHost = new HostPool();
+            host = hosts.putIfAbsent(key, newHost);
+            if (host == null) {
+                host = newHost;
+            }
+        }
+        return host;
+    }
+
+    private static class PooledEntry<T> {
+
+        private final T connection;
+        private final ConnectionFactory<T> factory;
+        private long lastUsed = System.currentTimeMillis();
+        private int leases;
+        private boolean broken;
+
+        PooledEntry(T connection, ConnectionFactory<T> factory) {
+            this.connection = connection;
+            this.factory = factory;
+        }
+
+        boolean isExpired(long now, long idleTimeoutMillis) {
+            return now - lastUsed > idleTimeoutMillis;
+        }
+    }
+
+    private class HostPool {
+
+        private final Deque<PooledEntry<T>> idle = new ArrayDeque<PooledEntry<T>>();
+        private final List<PooledEntry<T>> busy = new ArrayList<PooledEntry<T>>();
+        private int opening;
+        private int maxPerHost = DEFAULT_MAX_PER_HOST;
+        private int maxChannels = DEFAULT_MAX_CHANNELS;
+        private int learnedMaxChannels = Integer.MAX_VALUE;
+        private long learnedAt;
+        private long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(DEFAULT_IDLE_TIMEOUT);
+
+        synchronized void configure(int maxPerHost, int maxChannels, int idleTimeout) {
+            this.maxPerHost = maxPerHost > 0 ? maxPerHost : DEFAULT_MAX_PER_HOST;
+            if (learnedMaxChannels < Integer.MAX_VALUE
+                    && System.currentTimeMillis() - learnedAt > LEARNED_LIMIT_TIMEOUT) {
+                // the server configuration may have changed, try the group limit again
+                learnedMaxChannels = Integer.MAX_VALUE;
+            }
+            this.maxChannels = Math.min(maxChannels > 0 ? maxChannels : DEFAULT_MAX_CHANNELS, learnedMaxChannels);
+            this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeout > 0 ? idleTimeout : DEFAULT_IDLE_TIMEOUT);
+        }
+
+        PooledEntry<T> findShareable() {
+            if (maxChannels <= 1) {
+                return null;
+            }
+            PooledEntry<T> best = null;
+            for (PooledEntry<T> entry : busy) {
+                if (!entry.broken && entry.leases < maxChannels && (best == null || entry.leases < best.leases)) {
+                    best = entry;
+                }
+            }
+            return best;
+        }
+
+        PooledEntry<T> find(T connection) {
+            for (PooledEntry<T> entry : busy) {
+                if (entry.connection == connection) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        synchronized void opened(PooledEntry<T> entry) {
+            opening--;
+            entry.leases = 1;
+            busy.add(entry);
+            notifyAll();
+        }
+
+        synchronized void openFailed() {
+            opening--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Identifies the remote account a pooled connection is authenticated as.
+     */
+    public static final class PoolKey {
+
+        private final String groupName;
+        private final String ip;
+        private final int port;
+        private final String username;
+        private final String settings;
+
+        public PoolKey(String groupName, String ip, int port, String username) {
+            this(groupName, ip, port, username, "");
+        }
+
+        /**
+         * @param settings fingerprint of the credentials and transport
+         *            settings, connections opened before the group was
+         *            changed are not handed out for the new settings
+         */
+        public PoolKey(String groupName, String ip, int port, String username, String settings) {
+            this.groupName = groupName == null ? "" : groupName;
+            this.ip = ip;
+            this.port = port;
+            this.username = username;
+            this.settings = settings == null ? "" : settings;
+        }
+
+        public String getGroupName() {
+            return groupName;
+        }
+
+        public String getIp() {
+            return ip;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof PoolKey)) {
+                return false;
+            }
+            PoolKey other = (PoolKey) obj;
+            return port == other.port && groupName.equals(other.groupName)
+                    && equal(ip, other.ip) && equal(username, other.username)
+                    && settings.equals(other.settings);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = groupName.hashCode();
+            result = 31 * result + (ip == null ? 0 : ip.hashCode());
+            result = 31 * result + port;
+            result = 31 * result + (username == null ? 0 : username.hashCode());
+            result = 31 * result + settings.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + groupName + "] " + username + "@" + ip + ":" + port;
+        }
+    }
+
+    /**
+     * Point in time counters of a pool.
+     */
+    public static final class Statistics {
+
+        private final String name;
+        private final int hosts;
+        private final int leased;
+        private final int channels;
+        private final int idle;
+        private final long created;
+        private final long reused;
+        private final long multiplexed;
+        private final long destroyed;
+        private final long evicted;
+        private final long validationFailures;
+        private final long waits;
+
+        Statistics(String name, int hosts, int leased, int channels, int idle, long created, long reused,
+                long multiplexed, long destroyed, long evicted, long validationFailures, long waits) {
+            this.name = name;
+            this.hosts = hosts;
+            this.leased = leased;
+            this.channels = channels;
+            this.idle = idle;
+            this.created = created;
+            this.reused = reused;
+            this.multiplexed = multiplexed;
+            this.destroyed = destroyed;
+            this.evicted = evicted;
+            this.validationFailures = validationFailures;
+            this.waits = waits;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getHosts() {
+            return hosts;
+        }
+
+        public int getLeased() {
+            return leased;
+        }
+
+        public int getChannels() {
+            return channels;
+        }
+
+        public int getIdle() {
+            return idle;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getReused() {
+            return reused;
+        }
+
+        public long getMultiplexed() {
+            return multiplexed;
+        }
+
+        public long getDestroyed() {
+            return destroyed;
+        }
+
+        public long getEvicted() {
+            return evicted;
+        }
+
+        public long getValidationFailures() {
+            return validationFailures;
+        }
+
+        public long getWaits() {
+            return waits;
+        }
+
+        @Override
+        public String toString() {
+            return name + " pool [hosts=" + hosts + ", leased=" + leased + ", channels=" + channels + ", idle=" + idle
+                    + ", created=" + created + ", reused=" + reused + ", multiplexed=" + multiplexed
+                    + ", destroyed=" + destroyed + ", evicted=" + evicted
+                    + ", validationFailures=" + validationFailures + ", waits=" + waits + "]";
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Produces the stdin of a remote command. The stream is closed by the caller
+ * afterwards, which sends EOF to the remote command.
+ */
+public interface StdinSource {
+
+    void writeTo(OutputStream stdin) throws IOException;
+}
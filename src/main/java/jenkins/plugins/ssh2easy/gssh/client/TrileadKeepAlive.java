@@ -0,0 +1,105 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.Session;
+
+/**
+ * Server alive checks for trilead connections, which have no keepalive of
+ * their own.
+ *
+ * Every interval a probe opens and closes a session channel, which the
+ * server has to answer, accepted or refused. A probe still waiting for its
+ * answer at the next interval counts as missed, after the configured number
+ * of misses the connection is closed. That wakes up every thread blocked on
+ * it with an IOException instead of leaving them to the tcp timeout of the
+ * operating system.
+ */
+final class TrileadKeepAlive implements Runnable, ConnectionMonitor {
+
+    private static final Logger LOG = Logger.getLogger(TrileadKeepAlive.class);
+
+    private static final ThreadFactory THREADS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "GSSH keepalive");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(THREADS);
+
+    /**
+     * Probes block until the server answers, they must not hold up the
+     * scheduler.
+     */
+    private static final ExecutorService PROBES = Executors.newCachedThreadPool(THREADS);
+
+    private final Connection connection;
+    private final int countMax;
+    private volatile ScheduledFuture<?> schedule;
+    private Future<?> probe;
+    private int missed;
+
+    private TrileadKeepAlive(Connection connection, int countMax) {
+        this.connection = connection;
+        this.countMax = countMax;
+    }
+
+    /**
+     * Check the connection every interval seconds until it is closed.
+     */
+    static void start(Connection connection, int interval, int countMax) {
+        TrileadKeepAlive keepAlive = new TrileadKeepAlive(connection, Math.max(1, countMax));
+        connection.addConnectionMonitor(keepAlive);
+        keepAlive.schedule = SCHEDULER.scheduleWithFixedDelay(keepAlive, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void run() {
+        if (probe != null && !probe.isDone()) {
+            if (++missed >= countMax) {
+                LOG.warn("no answer from " + connection.getHostname() + ":" + connection.getPort() + " to " + missed
+                        + " keepalive probes , close the connection");
+                stop();
+                connection.close();
+            }
+            return;
+        }
+        missed = 0;
+        probe = PROBES.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Session session = connection.openSession();
+                    session.close();
+                } catch (IOException e) {
+                    // refused by the server is an answer as well, a closed
+                    // connection is reported to the monitor
+                }
+            }
+        });
+    }
+
+    @Override
+    public void connectionLost(Throwable reason) {
+        stop();
+    }
+
+    private void stop() {
+        ScheduledFuture<?> scheduled = schedule;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import com.jcraft.jsch.SocketFactory;
+
+/**
+ * Opens the jsch sockets with the tcp options of the server group. Buffer
+ * sizes are set before connecting, so the tcp window scale is negotiated for
+ * them.
+ */
+class TunedSocketFactory implements SocketFactory {
+
+    private final boolean tcpNoDelay;
+    private final int bufferSize;
+    private final boolean keepAlive;
+    private final int connectTimeout;
+
+    /**
+     * @param bufferSize bytes of the send and receive buffers, 0 for the
+     *        defaults of the operating system
+     * @param keepAlive true to let the operating system probe idle
+     *        connections too
+     * @param connectTimeout milliseconds the tcp connect may take, jsch
+     *        doesn't hand its own timeout to a socket factory
+     */
+    TunedSocketFactory(boolean tcpNoDelay, int bufferSize, boolean keepAlive, int connectTimeout) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.bufferSize = bufferSize;
+        this.keepAlive = keepAlive;
+        this.connectTimeout = connectTimeout;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(tcpNoDelay);
+            socket.setKeepAlive(keepAlive);
+            if (bufferSize > 0) {
+                socket.setSendBufferSize(bufferSize);
+                socket.setReceiveBufferSize(bufferSize);
+            }
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream(Socket socket) throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream(Socket socket) throws IOException {
+        return socket.getOutputStream();
+    }
+}
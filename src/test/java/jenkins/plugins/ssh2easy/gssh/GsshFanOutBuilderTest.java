@@ -0,0 +1,161 @@
+package jenkins.plugins.ssh2easy.gssh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import jenkins.plugins.ssh2easy.gssh.client.SshClient;
+import org.junit.Test;
+
+public class GsshFanOutBuilderTest {
+
+    private static List<Server> servers(int count) {
+        List<Server> servers = new ArrayList<Server>();
+        for (int i = 0; i < count; i++) {
+            servers.add(new Server("group", "host" + i, "10.0.0." + i));
+        }
+        return servers;
+    }
+
+    private static List<Integer> sizes(List<List<Server>> batches) {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (List<Server> batch : batches) {
+            sizes.add(batch.size());
+        }
+        return sizes;
+    }
+
+    @Test
+    public void emptyBatchSizeIsOneBatch() {
+        assertEquals(Arrays.asList(7), sizes(GsshFanOutBuilder.splitIntoBatches(servers(7), null)));
+        assertEquals(Arrays.asList(7), sizes(GsshFanOutBuilder.splitIntoBatches(servers(7), " ")));
+    }
+
+    @Test
+    public void countWithRemainder() {
+        assertEquals(Arrays.asList(3, 3, 1), sizes(GsshFanOutBuilder.splitIntoBatches(servers(7), "3")));
+        assertEquals(Arrays.asList(2, 2), sizes(GsshFanOutBuilder.splitIntoBatches(servers(4), " 2 ")));
+    }
+
+    @Test
+    public void percentageRoundsUp() {
+        assertEquals(Arrays.asList(3, 3, 3, 1), sizes(GsshFanOutBuilder.splitIntoBatches(servers(10), "25%")));
+        assertEquals(Arrays.asList(1, 1, 1), sizes(GsshFanOutBuilder.splitIntoBatches(servers(3), "10%")));
+    }
+
+    @Test
+    public void zeroIsOneServerPerBatch() {
+        assertEquals(Arrays.asList(1, 1, 1), sizes(GsshFanOutBuilder.splitIntoBatches(servers(3), "0")));
+        assertEquals(Arrays.asList(1, 1, 1), sizes(GsshFanOutBuilder.splitIntoBatches(servers(3), "0%")));
+    }
+
+    @Test
+    public void moreThanAllServersIsOneBatch() {
+        assertEquals(Arrays.asList(4), sizes(GsshFanOutBuilder.splitIntoBatches(servers(4), "150%")));
+        assertEquals(Arrays.asList(4), sizes(GsshFanOutBuilder.splitIntoBatches(servers(4), "10")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCountIsRejected() {
+        GsshFanOutBuilder.splitIntoBatches(servers(3), "two");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPercentageIsRejected() {
+        GsshFanOutBuilder.splitIntoBatches(servers(3), "half%");
+    }
+
+    @Test
+    public void batchesKeepServerOrder() {
+        List<Server> servers = servers(5);
+        List<List<Server>> batches = GsshFanOutBuilder.splitIntoBatches(servers, "2");
+        assertEquals(servers.subList(0, 2), batches.get(0));
+        assertEquals(servers.subList(4, 5), batches.get(2));
+    }
+
+    @Test
+    public void remainingBatchesAreSkippedOnceTooManyFailed() throws Exception {
+        List<Server> servers = servers(6);
+        FakeFanOut builder = new FakeFanOut(1, servers.get(0), servers.get(2));
+        Map<Server, Integer> results = builder.execute(logger(), GsshFanOutBuilder.splitIntoBatches(servers, "2"));
+        // batch 1 has one failure, tolerated, batch 2 the second one
+        assertEquals(4, results.size());
+        assertEquals(SshClient.STATUS_FAILED, (int) results.get(servers.get(0)));
+        assertEquals(SshClient.STATUS_SUCCESS, (int) results.get(servers.get(1)));
+        assertNull(results.get(servers.get(4)));
+        assertFalse(builder.executed.contains(servers.get(4)));
+        assertFalse(builder.executed.contains(servers.get(5)));
+    }
+
+    @Test
+    public void allBatchesRunWithinTheTolerance() throws Exception {
+        List<Server> servers = servers(6);
+        FakeFanOut builder = new FakeFanOut(2, servers.get(0), servers.get(2));
+        Map<Server, Integer> results = builder.execute(logger(), GsshFanOutBuilder.splitIntoBatches(servers, "2"));
+        assertEquals(6, results.size());
+        assertTrue(builder.executed.containsAll(servers));
+    }
+
+    @Test
+    public void failureInTheLastBatchDoesNotSkipAnything() throws Exception {
+        List<Server> servers = servers(4);
+        FakeFanOut builder = new FakeFanOut(0, servers.get(3));
+        Map<Server, Integer> results = builder.execute(logger(), GsshFanOutBuilder.splitIntoBatches(servers, "2"));
+        assertEquals(4, results.size());
+    }
+
+    @Test
+    public void crashOnAServerIsLoggedAndCounted() throws Exception {
+        List<Server> servers = servers(2);
+        final Server crashing = servers.get(1);
+        FakeFanOut builder = new FakeFanOut(0) {
+            @Override
+            protected int executeOn(HostOutputAggregator output, Server server) {
+                if (server == crashing) {
+                    throw new AssertionError("crashed on purpose");
+                }
+                return super.executeOn(output, server);
+            }
+        };
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        Map<Server, Integer> results = builder.execute(new PrintStream(log, true),
+                GsshFanOutBuilder.splitIntoBatches(servers, ""));
+        assertEquals(SshClient.STATUS_SUCCESS, (int) results.get(servers.get(0)));
+        assertEquals(SshClient.STATUS_FAILED, (int) results.get(crashing));
+        assertTrue(log.toString(), log.toString().contains("[host1] java.lang.AssertionError: crashed on purpose"));
+    }
+
+    private static PrintStream logger() {
+        return new PrintStream(new ByteArrayOutputStream(), true);
+    }
+
+    /**
+     * Fails on the given servers instead of connecting to them.
+     */
+    private static class FakeFanOut extends GsshFanOutBuilder {
+
+        private final List<Server> failing;
+        private final Set<Server> executed = Collections.synchronizedSet(new HashSet<Server>());
+
+        FakeFanOut(int maxFailures, Server... failing) {
+            super(false, "group", null, "true", false, 2, null, maxFailures, false);
+            this.failing = Arrays.asList(failing);
+        }
+
+        @Override
+        protected int executeOn(HostOutputAggregator output, Server server) {
+            executed.add(server);
+            return failing.contains(server) ? SshClient.STATUS_FAILED : SshClient.STATUS_SUCCESS;
+        }
+    }
+}
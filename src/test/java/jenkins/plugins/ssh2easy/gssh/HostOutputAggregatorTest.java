@@ -0,0 +1,137 @@
+package jenkins.plugins.ssh2easy.gssh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class HostOutputAggregatorTest {
+
+    @Test
+    public void linesArePrefixedWithTheirServer() {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        HostOutputAggregator output = new HostOutputAggregator(new PrintStream(log, true));
+        PrintStream web = output.newHostStream("web1");
+        web.print("first ");
+        web.print("line\nsecond");
+        web.print(" line\n");
+        web.close();
+        assertEquals("[web1] first line\n[web1] second line\n", log.toString());
+    }
+
+    @Test
+    public void unfinishedLineIsWrittenOnClose() {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        HostOutputAggregator output = new HostOutputAggregator(new PrintStream(log, true));
+        PrintStream db = output.newHostStream("db");
+        db.print("no newline");
+        assertEquals("", log.toString());
+        db.close();
+        assertEquals("[db] no newline\n", log.toString());
+    }
+
+    @Test
+    public void longLinesAreCut() {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        HostOutputAggregator output = new HostOutputAggregator(new PrintStream(log, true));
+        PrintStream host = output.newHostStream("h");
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < HostOutputAggregator.MAX_LINE_LENGTH + 10; i++) {
+            line.append('x');
+        }
+        host.print(line);
+        host.close();
+        String[] lines = log.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("[h] ".length() + HostOutputAggregator.MAX_LINE_LENGTH, lines[0].length());
+        assertEquals("[h] xxxxxxxxxx", lines[1]);
+    }
+
+    @Test
+    public void linesOfServersAreNotMixed() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        HostOutputAggregator output = new HostOutputAggregator(new PrintStream(log, true));
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final PrintStream host = output.newHostStream("h" + t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        host.print("part one ");
+                        host.print("part two " + i + "\n");
+                    }
+                    host.close();
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        String[] lines = log.toString().split("\n");
+        assertEquals(2000, lines.length);
+        for (String line : lines) {
+            assertTrue(line, line.matches("\\[h\\d\\] part one part two \\d+"));
+        }
+    }
+
+    @Test
+    public void busyLogSpillsAndKeepsOrder() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        OutputStream gate = new OutputStream() {
+            private boolean first = true;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (first) {
+                    first = false;
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                log.write(b, off, len);
+            }
+        };
+        final HostOutputAggregator output = new HostOutputAggregator(new PrintStream(gate, true), 64);
+        // a message stuck in the log write keeps the log busy
+        Thread busy = new Thread() {
+            @Override
+            public void run() {
+                output.println("busy");
+            }
+        };
+        busy.start();
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        PrintStream host = output.newHostStream("h");
+        for (int i = 0; i < 100; i++) {
+            host.print("line " + i + "\n");
+        }
+        assertEquals("", log.toString().replace("busy\n", "").replace("busy", ""));
+        release.countDown();
+        busy.join();
+        host.close();
+        String[] lines = log.toString().split("\n");
+        assertEquals(101, lines.length);
+        assertEquals("busy", lines[0]);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("[h] line " + i, lines[i + 1]);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+public class AbstractSshClientTest {
+
+    @Test
+    public void splitAtTheFolderBeforeTheFirstWildcard() {
+        assertArrayEquals(new String[] { "/opt/app/logs", "*.log" },
+                AbstractSshClient.splitPattern("/opt/app/logs/*.log"));
+        assertArrayEquals(new String[] { "/opt/app", "**/lib/*.jar" },
+                AbstractSshClient.splitPattern("/opt/app/**/lib/*.jar"));
+        assertArrayEquals(new String[] { "/opt", "app?/conf" }, AbstractSshClient.splitPattern("/opt/app?/conf"));
+    }
+
+    @Test
+    public void folderWithoutWildcardTakesEverything() {
+        assertArrayEquals(new String[] { "/opt/app", "**" }, AbstractSshClient.splitPattern("/opt/app"));
+        assertArrayEquals(new String[] { "/opt/app", "**" }, AbstractSshClient.splitPattern("/opt/app/"));
+    }
+
+    @Test
+    public void relativeAndRootPatterns() {
+        assertArrayEquals(new String[] { ".", "*.txt" }, AbstractSshClient.splitPattern("*.txt"));
+        assertArrayEquals(new String[] { "/", "*.txt" }, AbstractSshClient.splitPattern("/*.txt"));
+    }
+
+    @Test
+    public void singleStarStaysInItsFolder() {
+        Pattern pattern = AbstractSshClient.globToRegex("*.log");
+        assertTrue(pattern.matcher("app.log").matches());
+        assertFalse(pattern.matcher("old/app.log").matches());
+        assertFalse(pattern.matcher("app.log.1").matches());
+    }
+
+    @Test
+    public void doubleStarSpansFolders() {
+        Pattern pattern = AbstractSshClient.globToRegex("**/*.jar");
+        assertTrue(pattern.matcher("a.jar").matches());
+        assertTrue(pattern.matcher("lib/a.jar").matches());
+        assertTrue(pattern.matcher("lib/ext/a.jar").matches());
+        assertFalse(pattern.matcher("lib/a.jar.sha1").matches());
+        assertTrue(AbstractSshClient.globToRegex("**").matcher("any/thing/at/all").matches());
+    }
+
+    @Test
+    public void questionMarkIsOneCharacter() {
+        Pattern pattern = AbstractSshClient.globToRegex("app?.conf");
+        assertTrue(pattern.matcher("app1.conf").matches());
+        assertFalse(pattern.matcher("app.conf").matches());
+        assertFalse(pattern.matcher("app/.conf").matches());
+    }
+
+    @Test
+    public void regexCharactersAreLiteral() {
+        Pattern pattern = AbstractSshClient.globToRegex("a+b(1).[x]");
+        assertTrue(pattern.matcher("a+b(1).[x]").matches());
+        assertFalse(pattern.matcher("aab(1)x[x]").matches());
+    }
+}
@@ -0,0 +1,104 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import jenkins.plugins.ssh2easy.gssh.GsshPluginException;
+import java.util.concurrent.TimeUnit;
+import org.apache.sshd.SshServer;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.CommandFactory;
+import org.apache.sshd.server.PasswordAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs commands through {@link DefaultSshClient} against an embedded sshd
+ * that executes them with /bin/sh.
+ */
+public class DefaultSshClientTest {
+
+    private static final String USER = "gssh";
+    private static final String PASSWORD = "secret";
+
+    private SshServer sshd;
+
+    @Before
+    public void startSshd() throws Exception {
+        sshd = SshServer.setUpDefaultServer();
+        sshd.setHost("127.0.0.1");
+        sshd.setPort(0);
+        // in memory rsa host key, newer jdks refuse the default dsa key with sha1
+        sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(null, "RSA"));
+        sshd.setPasswordAuthenticator(new PasswordAuthenticator() {
+            @Override
+            public boolean authenticate(String username, String password, ServerSession session) {
+                return USER.equals(username) && PASSWORD.equals(password);
+            }
+        });
+        sshd.setCommandFactory(new CommandFactory() {
+            @Override
+            public Command createCommand(String command) {
+                return new ProcessShellFactory(new String[] { "/bin/sh", "-c", command }).create();
+            }
+        });
+        sshd.start();
+    }
+
+    @After
+    public void stopSshd() throws Exception {
+        DefaultSshClient.getSessionPool().clear();
+        sshd.stop(true);
+    }
+
+    @Test
+    public void echoRoundTripIsFast() {
+        SshClient client = DefaultSshClient.newInstance("127.0.0.1", sshd.getPort(), USER, PASSWORD, "");
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PrintStream logger = new PrintStream(log, true);
+        // the first command pays for connect, key exchange and login, the
+        // following ones reuse the pooled session
+        assertEquals(0, client.executeCommand(logger, "echo warm up"));
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            assertEquals(0, client.executeCommand(logger, "echo hello"));
+            best = Math.min(best, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        assertTrue("echo took " + best + " ms", best < 100);
+        assertTrue(log.toString().contains("hello"));
+    }
+
+    @Test
+    public void exitStatusIsReturned() {
+        SshClient client = DefaultSshClient.newInstance("127.0.0.1", sshd.getPort(), USER, PASSWORD, "");
+        PrintStream logger = new PrintStream(new ByteArrayOutputStream(), true);
+        assertEquals(3, client.executeCommand(logger, "exit 3"));
+    }
+
+    @Test
+    public void silentServerTimesOut() throws Exception {
+        // accepts the connection but never sends the ssh banner
+        ServerSocket silent = new ServerSocket(0);
+        try {
+            DefaultSshClient client = new DefaultSshClient("127.0.0.1", silent.getLocalPort(), USER, PASSWORD, "");
+            long start = System.currentTimeMillis();
+            try {
+                client.createSession(new PrintStream(new ByteArrayOutputStream(), true), 500);
+                fail("connect to a silent server should time out");
+            } catch (GsshPluginException expected) {
+            }
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        } finally {
+            silent.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import jenkins.plugins.ssh2easy.gssh.GsshPluginException;
+import org.junit.After;
+import org.junit.Test;
+
+public class HostCircuitBreakerTest {
+
+    private static final String HOST = HostCircuitBreaker.key("10.0.0.1", 22);
+
+    @After
+    public void reset() {
+        HostCircuitBreaker.reset();
+    }
+
+    @Test
+    public void staysClosedBelowThreshold() {
+        HostCircuitBreaker.failed(HOST, 3, 60, 0);
+        HostCircuitBreaker.failed(HOST, 3, 60, 1);
+        HostCircuitBreaker.check(HOST, 2);
+        assertFalse(HostCircuitBreaker.isOpenAt(HOST, 2));
+    }
+
+    @Test
+    public void opensHalfOpensAndCloses() {
+        HostCircuitBreaker.failed(HOST, 2, 60, 0);
+        HostCircuitBreaker.failed(HOST, 2, 60, 1000);
+        assertTrue(HostCircuitBreaker.isOpenAt(HOST, 1000));
+        assertFailsFast(30000);
+
+        // cooldown over: one connect is let through, the next waits again
+        HostCircuitBreaker.check(HOST, 61000);
+        assertFailsFast(61001);
+
+        // the trial connect failed, another cooldown starts
+        HostCircuitBreaker.failed(HOST, 2, 60, 62000);
+        assertFailsFast(100000);
+        HostCircuitBreaker.check(HOST, 122000);
+
+        // the trial connect succeeded, the breaker is closed
+        HostCircuitBreaker.succeeded(HOST);
+        HostCircuitBreaker.check(HOST, 122001);
+        HostCircuitBreaker.check(HOST, 122002);
+        assertFalse(HostCircuitBreaker.isOpenAt(HOST, 122002));
+    }
+
+    @Test
+    public void zeroThresholdNeverOpens() {
+        for (int i = 0; i < 10; i++) {
+            HostCircuitBreaker.failed(HOST, 0, 60, i);
+        }
+        HostCircuitBreaker.check(HOST, 10);
+    }
+
+    @Test
+    public void hostsAreIndependent() {
+        HostCircuitBreaker.failed(HOST, 1, 60, 0);
+        HostCircuitBreaker.check(HostCircuitBreaker.key("10.0.0.1", 2222), 1);
+        HostCircuitBreaker.check(HostCircuitBreaker.key("10.0.0.2", 22), 1);
+    }
+
+    private static void assertFailsFast(long now) {
+        try {
+            HostCircuitBreaker.check(HOST, now);
+            fail("connect at " + now + " should fail fast");
+        } catch (GsshPluginException expected) {
+        }
+    }
+}
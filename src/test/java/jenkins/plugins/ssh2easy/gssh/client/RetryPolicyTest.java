@@ -0,0 +1,45 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void retriesAreCounted() {
+        RetryPolicy retry = new RetryPolicy(2, 100);
+        assertTrue(retry.canRetry(0));
+        assertTrue(retry.canRetry(1));
+        assertFalse(retry.canRetry(2));
+        assertFalse(new RetryPolicy(0, 100).canRetry(0));
+        assertFalse(new RetryPolicy(-1, 100).canRetry(0));
+    }
+
+    @Test
+    public void delayGrowsWithinHalfAndFullBound() {
+        RetryPolicy retry = new RetryPolicy(100, 1000);
+        for (int attempt = 0; attempt < 64; attempt++) {
+            long bound = Math.min(1000L << Math.min(attempt, 20), RetryPolicy.MAX_DELAY);
+            for (int i = 0; i < 50; i++) {
+                long delay = retry.delay(attempt);
+                assertTrue("attempt " + attempt + " waits " + delay, delay >= bound / 2 && delay <= bound);
+            }
+        }
+    }
+
+    @Test
+    public void delayIsCapped() {
+        RetryPolicy retry = new RetryPolicy(1, Long.MAX_VALUE / 2);
+        for (int attempt = 0; attempt < 30; attempt++) {
+            assertTrue(retry.delay(attempt) <= RetryPolicy.MAX_DELAY);
+        }
+    }
+
+    @Test
+    public void zeroBaseDelayStillWaits() {
+        assertTrue(new RetryPolicy(1, 0).delay(0) >= 0);
+        assertTrue(new RetryPolicy(1, 0).delay(5) <= 32);
+    }
+}
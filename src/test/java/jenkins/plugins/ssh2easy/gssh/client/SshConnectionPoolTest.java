@@ -0,0 +1,163 @@
+package jenkins.plugins.ssh2easy.gssh.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class SshConnectionPoolTest {
+
+    private final SshConnectionPool<FakeConnection> pool = new SshConnectionPool<FakeConnection>("test");
+    private final SshConnectionPool.PoolKey key = new SshConnectionPool.PoolKey("group", "10.0.0.1", 22, "user");
+    private final FakeFactory factory = new FakeFactory();
+    private final PrintStream logger = new PrintStream(new ByteArrayOutputStream(), true);
+
+    private FakeConnection borrow(int maxPerHost, int maxChannels, int idleTimeout) {
+        return pool.borrow(key, logger, factory, maxPerHost, maxChannels, idleTimeout);
+    }
+
+    @Test
+    public void releasedConnectionIsReused() {
+        FakeConnection first = borrow(2, 1, 300);
+        pool.release(key, first);
+        FakeConnection second = borrow(2, 1, 300);
+        assertSame(first, second);
+        assertEquals(1, factory.created.get());
+        assertEquals(1, pool.getStatistics().getReused());
+    }
+
+    @Test
+    public void leasedConnectionIsNotSharedWithOneChannel() {
+        FakeConnection first = borrow(2, 1, 300);
+        FakeConnection second = borrow(2, 1, 300);
+        assertNotSame(first, second);
+        assertEquals(2, pool.getStatistics().getLeased());
+    }
+
+    @Test
+    public void deadConnectionIsReplaced() {
+        FakeConnection first = borrow(2, 1, 300);
+        pool.release(key, first);
+        first.alive = false;
+        FakeConnection second = borrow(2, 1, 300);
+        assertNotSame(first, second);
+        assertTrue(first.closed);
+        assertEquals(1, pool.getStatistics().getValidationFailures());
+    }
+
+    @Test
+    public void invalidatedConnectionIsClosed() {
+        FakeConnection first = borrow(2, 1, 300);
+        pool.invalidate(key, first);
+        assertTrue(first.closed);
+        assertEquals(0, pool.getStatistics().getIdle());
+    }
+
+    @Test
+    public void idleConnectionIsEvicted() throws Exception {
+        FakeConnection first = borrow(2, 1, 1);
+        pool.release(key, first);
+        pool.evictIdle();
+        assertFalse(first.closed);
+        Thread.sleep(1100);
+        pool.evictIdle();
+        assertTrue(first.closed);
+        assertEquals(1, pool.getStatistics().getEvicted());
+    }
+
+    @Test
+    public void clearClosesIdleConnections() {
+        FakeConnection first = borrow(2, 1, 300);
+        FakeConnection second = borrow(2, 1, 300);
+        pool.release(key, first);
+        pool.clear();
+        assertTrue(first.closed);
+        assertFalse(second.closed);
+        pool.release(key, second);
+        assertFalse(second.closed);
+    }
+
+    @Test
+    public void changedSettingsGetANewConnection() {
+        SshConnectionPool.PoolKey before = new SshConnectionPool.PoolKey("group", "10.0.0.1", 22, "user", "old");
+        SshConnectionPool.PoolKey after = new SshConnectionPool.PoolKey("group", "10.0.0.1", 22, "user", "new");
+        FakeConnection first = pool.borrow(before, logger, factory, 2, 3, 300);
+        FakeConnection second = pool.borrow(after, logger, factory, 2, 3, 300);
+        assertNotSame(first, second);
+        pool.release(before, first);
+        assertNotSame(first, pool.borrow(after, logger, factory, 2, 3, 300));
+    }
+
+    @Test
+    public void channelsAreSharedUpToTheLimit() {
+        FakeConnection first = borrow(2, 2, 300);
+        assertSame(first, borrow(2, 2, 300));
+        assertNotSame(first, borrow(2, 2, 300));
+        assertEquals(1, pool.getStatistics().getMultiplexed());
+        assertEquals(3, pool.getStatistics().getChannels());
+    }
+
+    @Test
+    public void refusedChannelLowersTheLimit() {
+        FakeConnection first = borrow(2, 3, 300);
+        assertSame(first, borrow(2, 3, 300));
+        // the server refused the second channel, like sshd with MaxSessions 1
+        assertTrue(pool.channelRefused(key, first));
+        pool.release(key, first);
+        FakeConnection next = borrow(2, 3, 300);
+        assertNotSame(first, next);
+    }
+
+    @Test
+    public void deadConnectionIsNoRefusal() {
+        FakeConnection first = borrow(2, 3, 300);
+        assertSame(first, borrow(2, 3, 300));
+        first.alive = false;
+        assertFalse(pool.channelRefused(key, first));
+        // no longer shared, and closed once both leases are given back
+        FakeConnection next = borrow(2, 3, 300);
+        assertNotSame(first, next);
+        pool.release(key, first);
+        pool.release(key, first);
+        assertTrue(first.closed);
+    }
+
+    @Test
+    public void soleLeaseIsNoRefusal() {
+        FakeConnection first = borrow(2, 3, 300);
+        assertFalse(pool.channelRefused(key, first));
+    }
+
+    private static class FakeConnection {
+
+        private volatile boolean alive = true;
+        private volatile boolean closed;
+    }
+
+    private static class FakeFactory implements SshConnectionPool.ConnectionFactory<FakeConnection> {
+
+        private final AtomicInteger created = new AtomicInteger();
+
+        @Override
+        public FakeConnection create(PrintStream logger) {
+            created.incrementAndGet();
+            return new FakeConnection();
+        }
+
+        @Override
+        public boolean validate(FakeConnection connection) {
+            return connection.alive;
+        }
+
+        @Override
+        public void destroy(FakeConnection connection) {
+            connection.closed = true;
+        }
+    }
+}